@@ -27,18 +27,35 @@ require 'rubygems'
 require 'nokogiri'
 require 'open-uri'
 
+MARKER = "# generated by list-enterprise-plugins.rb"
+END_MARKER = "[END]"
+
 if !ARGV[0]
-  puts "Please provide the path to the CloudBees Jenkins Enterprise WAR pom.xml as the first and only argument"
+  puts "Please provide the path to the CloudBees Jenkins Enterprise WAR pom.xml as the first argument"
+  puts "and optionally the install manifest to update as the second argument"
   exit 1
 end
 
+plugins = []
 Nokogiri::XML(File.open(ARGV[0])).remove_namespaces!.xpath("/project/dependencies/dependency").each do |dep|
   scope = dep.xpath("scope").first()
   type = dep.xpath("type").first()
   artifactId = dep.xpath("artifactId").first().content()
   version = dep.xpath("version").first().content()
   if scope && scope.content() == "provided" && type && type.content() == "hpi"
-    puts "require(\"" + artifactId + "\",\"" + version + "\"),"
+    plugins << artifactId + " " + version
   end
 end
+plugins.sort!
 
+if ARGV[1]
+  manifest = File.readlines(ARGV[1]).map { |line| line.chomp }
+  marker = manifest.index(MARKER)
+  if !marker
+    puts "Could not find the line '" + MARKER + "' in " + ARGV[1]
+    exit 1
+  end
+  File.open(ARGV[1], "w") { |file| file.puts(manifest[0..marker] + plugins + ["", END_MARKER]) }
+else
+  puts plugins
+end
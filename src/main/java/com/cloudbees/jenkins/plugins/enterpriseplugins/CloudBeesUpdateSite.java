@@ -23,16 +23,41 @@
  */
 package com.cloudbees.jenkins.plugins.enterpriseplugins;
 
+import hudson.ProxyConfiguration;
+import hudson.model.Computer;
 import hudson.model.UpdateSite;
+import hudson.security.ACL;
+import hudson.util.FormValidation;
+import hudson.util.TextFile;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
 import org.apache.commons.io.IOUtils;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLEncoder;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 import jenkins.util.JSONSignatureValidator;
 
 /**
@@ -40,6 +65,33 @@ import jenkins.util.JSONSignatureValidator;
  */
 public class CloudBeesUpdateSite extends UpdateSite {
 
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(CloudBeesUpdateSite.class.getName());
+
+    /**
+     * Escape hatch to fetch the update center metadata as plain JSON only.
+     */
+    public static boolean DISABLE_COMPRESSED_METADATA =
+            Boolean.getBoolean(CloudBeesUpdateSite.class.getName() + ".disableCompressedMetadata");
+
+    /**
+     * Opt-in to sharing the names and versions repeated across plugin entries before {@link UpdateSite.Data} is built
+     * from them, for controllers that are short on memory.
+     */
+    public static boolean COMPACT_DATA = Boolean.getBoolean(CloudBeesUpdateSite.class.getName() + ".compactData");
+
+    /**
+     * Plugin entry fields whose values repeat across entries and are copied into {@link UpdateSite.Plugin}.
+     */
+    private static final List<String> SHARED_PLUGIN_FIELDS = Arrays.asList(
+            "name",
+            "version",
+            "requiredCore",
+            "compatibleSinceVersion"
+    );
+
     /**
      * Constructor.
      *
@@ -65,4 +117,193 @@ public class CloudBeesUpdateSite extends UpdateSite {
         };
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The CloudBees metadata is large and compresses well, so we first try the pre-compressed {@code .json.gz}
+     * sibling of {@link #getUrl()} and then the plain URL with {@code gzip} content-encoding, decompressing as we
+     * read. The signature is always validated against the decompressed content.
+     */
+    @Override
+    public Future<FormValidation> updateDirectly(final boolean signatureCheck) {
+        if (DISABLE_COMPRESSED_METADATA) {
+            return super.updateDirectly(signatureCheck);
+        }
+        if (getMetadataFile().exists() && !isDue()) {
+            return null;
+        }
+        return Computer.threadPoolForRemoting.submit(new Callable<FormValidation>() {
+            public FormValidation call() throws Exception {
+                return updateCompressed(signatureCheck);
+            }
+        });
+    }
+
+    /**
+     * Downloads the metadata, preferring a compressed transfer, and stores it where {@link UpdateSite} reads it from.
+     *
+     * @param signatureCheck whether to verify the signature of the metadata.
+     * @return the outcome.
+     * @throws IOException if the metadata could not be obtained.
+     */
+    private FormValidation updateCompressed(boolean signatureCheck) throws IOException {
+        String query = "?id=" + URLEncoder.encode(getId(), "UTF-8")
+                + "&version=" + URLEncoder.encode(Jenkins.VERSION, "UTF-8");
+        String json;
+        try {
+            json = loadJSON(new URL(getUrl() + ".gz" + query));
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not obtain pre-compressed metadata for update site " + getId()
+                    + ", falling back to content-encoding", e);
+            json = loadJSON(new URL(getUrl() + query));
+        }
+
+        JSONObject o = JSONObject.fromObject(json);
+        int v = o.getInt("updateCenterVersion");
+        if (v != 1) {
+            throw new IllegalArgumentException("Unrecognized update center version: " + v);
+        }
+        if (signatureCheck) {
+            FormValidation e = getJsonSignatureValidator().verifySignature(o);
+            if (e.kind != FormValidation.Kind.OK) {
+                LOGGER.severe(e.toString());
+                return e;
+            }
+        }
+
+        LOGGER.log(Level.INFO, "Obtained the latest update center data file for UpdateSource {0}", getId());
+        getMetadataFile().write(json);
+        // have core drop anything it cached and take the data timestamp from the file we just wrote
+        SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+        try {
+            doInvalidateData();
+        } finally {
+            SecurityContextHolder.setContext(old);
+        }
+        return FormValidation.ok();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * When {@link #COMPACT_DATA} is enabled the versions, labels and dependency coordinates of the plugin entries are
+     * replaced in place by a single instance per distinct value. {@link UpdateSite.Plugin} keeps references to these
+     * strings, so this is what it retains; the URLs and descriptions are unique per plugin and are left alone.
+     */
+    @Override
+    public JSONObject getJSONObject() {
+        JSONObject o = super.getJSONObject();
+        if (o == null || !COMPACT_DATA) {
+            return o;
+        }
+        JSONObject plugins = o.optJSONObject("plugins");
+        if (plugins != null) {
+            Map<String, String> pool = new HashMap<String, String>();
+            for (Object key : plugins.keySet()) {
+                Object plugin = plugins.get(key);
+                if (plugin instanceof JSONObject) {
+                    // the key becomes the key of UpdateSite.Data.plugins, let the entry's name be the same instance
+                    pool.put((String) key, (String) key);
+                    share((JSONObject) plugin, pool);
+                }
+            }
+        }
+        return o;
+    }
+
+    /**
+     * Replaces the repeated values of a plugin entry with their shared instances.
+     *
+     * @param plugin the plugin entry.
+     * @param pool   the values shared so far.
+     */
+    private static void share(JSONObject plugin, Map<String, String> pool) {
+        for (String field : SHARED_PLUGIN_FIELDS) {
+            Object value = plugin.opt(field);
+            if (value instanceof String) {
+                plugin.put(field, share(pool, (String) value));
+            }
+        }
+        JSONArray labels = plugin.optJSONArray("labels");
+        if (labels != null) {
+            for (int i = 0; i < labels.size(); i++) {
+                Object label = labels.get(i);
+                if (label instanceof String) {
+                    labels.set(i, share(pool, (String) label));
+                }
+            }
+        }
+        JSONArray dependencies = plugin.optJSONArray("dependencies");
+        if (dependencies != null) {
+            for (Object dependency : dependencies) {
+                if (dependency instanceof JSONObject) {
+                    JSONObject d = (JSONObject) dependency;
+                    for (String field : Arrays.asList("name", "version")) {
+                        Object value = d.opt(field);
+                        if (value instanceof String) {
+                            d.put(field, share(pool, (String) value));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the canonical instance of a value.
+     *
+     * @param pool  the values shared so far.
+     * @param value the value.
+     * @return the first equal value seen.
+     */
+    private static String share(Map<String, String> pool, String value) {
+        String shared = pool.get(value);
+        if (shared == null) {
+            pool.put(value, value);
+            return value;
+        }
+        return shared;
+    }
+
+    /**
+     * The file that {@link UpdateSite} reads its data from, i.e. {@code $JENKINS_HOME/updates/<id>.json}.
+     */
+    private TextFile getMetadataFile() {
+        return new TextFile(new File(Jenkins.getInstance().getRootDir(), "updates/" + getId() + ".json"));
+    }
+
+    /**
+     * Loads the metadata from the specified URL, decompressing it on the fly if the server sent it compressed.
+     *
+     * @param src the URL.
+     * @return the metadata with any JSONP wrapping removed.
+     * @throws IOException if the metadata could not be obtained.
+     */
+    private static String loadJSON(URL src) throws IOException {
+        URLConnection con = ProxyConfiguration.open(src);
+        con.setRequestProperty("Accept-Encoding", "gzip");
+        if (con instanceof HttpURLConnection) {
+            int code = ((HttpURLConnection) con).getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Server returned HTTP response code: " + code + " for URL: " + src);
+            }
+        }
+        InputStream stream = con.getInputStream();
+        try {
+            if ("gzip".equalsIgnoreCase(con.getContentEncoding()) || src.getPath().endsWith(".gz")) {
+                stream = new GZIPInputStream(stream);
+            }
+            String jsonp = IOUtils.toString(new InputStreamReader(stream, "UTF-8"));
+            int start = jsonp.indexOf('{');
+            int end = jsonp.lastIndexOf('}');
+            if (start >= 0 && end > start) {
+                return jsonp.substring(start, end + 1);
+            } else {
+                throw new IOException("Could not find JSON in " + src);
+            }
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
 }
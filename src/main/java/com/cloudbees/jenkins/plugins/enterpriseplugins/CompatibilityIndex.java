@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.plugins.enterpriseplugins;
+
+import hudson.PluginManager;
+import hudson.PluginWrapper;
+import hudson.model.UpdateCenter;
+import hudson.model.UpdateSite;
+import hudson.util.VersionNumber;
+import jenkins.model.Jenkins;
+import org.jvnet.localizer.Localizable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+
+/**
+ * A snapshot of what the CloudBees update site offers against what is currently installed, so that plugins which
+ * cannot possibly work are rejected before anything is downloaded.
+ */
+class CompatibilityIndex {
+
+    /**
+     * The update sites that dependencies are resolved from, in the order that
+     * {@link hudson.model.UpdateCenter#getPlugin(String)} searches them.
+     */
+    private final List<UpdateSite> sites;
+
+    /**
+     * The running core version.
+     */
+    private final VersionNumber coreVersion;
+
+    /**
+     * The installed plugin versions keyed by short name.
+     */
+    private final Map<String, VersionNumber> installed = new HashMap<String, VersionNumber>();
+
+    /**
+     * For each plugin short name, the installed plugins that depend on it and the minimum version they require.
+     */
+    private final Map<String, Map<String, VersionNumber>> requiredBy = new HashMap<String, Map<String, VersionNumber>>();
+
+    /**
+     * Constructor.
+     *
+     * @param updateCenter  the update center that dependencies will be deployed from.
+     * @param pluginManager the plugin manager holding the installed plugins.
+     */
+    CompatibilityIndex(UpdateCenter updateCenter, PluginManager pluginManager) {
+        this(new ArrayList<UpdateSite>(updateCenter.getSites()), Jenkins.getVersion());
+        for (PluginWrapper plugin : pluginManager.getPlugins()) {
+            installed(plugin.getShortName(), plugin.getVersionNumber());
+            for (PluginWrapper.Dependency dependency : plugin.getDependencies()) {
+                requires(plugin.getShortName(), dependency.shortName, new VersionNumber(dependency.version));
+            }
+        }
+    }
+
+    /**
+     * Constructor for an index with no installed plugins that resolves dependencies from a single update site.
+     *
+     * @param site        the update site that plugins will be deployed from.
+     * @param coreVersion the running core version.
+     */
+    CompatibilityIndex(UpdateSite site, @CheckForNull VersionNumber coreVersion) {
+        this(Collections.singletonList(site), coreVersion);
+    }
+
+    /**
+     * Constructor for an index with no installed plugins.
+     *
+     * @param sites       the update sites that dependencies are resolved from, in search order.
+     * @param coreVersion the running core version.
+     */
+    CompatibilityIndex(List<UpdateSite> sites, @CheckForNull VersionNumber coreVersion) {
+        this.sites = sites;
+        this.coreVersion = coreVersion;
+    }
+
+    /**
+     * Records an installed plugin.
+     *
+     * @param name    the plugin short name.
+     * @param version the installed version.
+     */
+    void installed(String name, VersionNumber version) {
+        installed.put(name, version);
+    }
+
+    /**
+     * Records that an installed plugin depends on another plugin.
+     *
+     * @param dependant  the short name of the installed plugin.
+     * @param dependency the short name of the plugin it depends on.
+     * @param version    the minimum version of the dependency it requires.
+     */
+    void requires(String dependant, String dependency, VersionNumber version) {
+        Map<String, VersionNumber> dependants = requiredBy.get(dependency);
+        if (dependants == null) {
+            dependants = new HashMap<String, VersionNumber>();
+            requiredBy.put(dependency, dependants);
+        }
+        dependants.put(dependant, version);
+    }
+
+    /**
+     * Checks whether the update site's version of a plugin can be deployed.
+     *
+     * @param plugin  the plugin as offered by the update site.
+     * @param minimum the minimum version we need or {@code null} if any version will do.
+     * @return {@code null} if the plugin can be deployed, otherwise the reason why not.
+     */
+    @CheckForNull
+    public Localizable check(UpdateSite.Plugin plugin, @CheckForNull VersionNumber minimum) {
+        if (minimum != null && new VersionNumber(plugin.version).isOlderThan(minimum)) {
+            return Messages._CompatibilityIndex_olderThanRequired(plugin.name, plugin.version, minimum);
+        }
+        return checkDeployable(plugin, new HashSet<String>());
+    }
+
+    /**
+     * Finds a plugin the way {@link hudson.model.UpdateCenter#getPlugin(String)} does, which is where
+     * {@link UpdateSite.Plugin#deploy()} takes dependencies from.
+     *
+     * @param name the plugin short name.
+     * @return the plugin from the first update site that offers it or {@code null} if none does.
+     */
+    @CheckForNull
+    private UpdateSite.Plugin getPlugin(String name) {
+        for (UpdateSite site : sites) {
+            UpdateSite.Plugin plugin = site.getPlugin(name);
+            if (plugin != null) {
+                return plugin;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks that a plugin and, transitively, any dependencies that would need deploying with it are supported by
+     * the running core and do not fall below the versions that installed plugins depend on.
+     *
+     * @param plugin  the plugin as offered by the update site.
+     * @param visited the plugins already checked, to guard against dependency cycles.
+     * @return {@code null} if the plugin can be deployed, otherwise the reason why not.
+     */
+    @CheckForNull
+    private Localizable checkDeployable(UpdateSite.Plugin plugin, Set<String> visited) {
+        if (!visited.add(plugin.name)) {
+            return null;
+        }
+        VersionNumber version = new VersionNumber(plugin.version);
+        if (plugin.requiredCore != null && coreVersion != null
+                && coreVersion.isOlderThan(new VersionNumber(plugin.requiredCore))) {
+            return Messages._CompatibilityIndex_requiresNewerCore(plugin.name, plugin.version, plugin.requiredCore,
+                    coreVersion);
+        }
+        Map<String, VersionNumber> dependants = requiredBy.get(plugin.name);
+        if (dependants != null) {
+            for (Map.Entry<String, VersionNumber> dependant : dependants.entrySet()) {
+                if (version.isOlderThan(dependant.getValue())) {
+                    return Messages._CompatibilityIndex_conflict(plugin.name, plugin.version, dependant.getKey(),
+                            dependant.getValue());
+                }
+            }
+        }
+        for (Map.Entry<String, String> dependency : plugin.dependencies.entrySet()) {
+            VersionNumber required = new VersionNumber(dependency.getValue());
+            VersionNumber current = installed.get(dependency.getKey());
+            if (current != null && !current.isOlderThan(required)) {
+                continue;
+            }
+            UpdateSite.Plugin candidate = getPlugin(dependency.getKey());
+            if (candidate == null || new VersionNumber(candidate.version).isOlderThan(required)) {
+                return Messages._CompatibilityIndex_missingDependency(plugin.name, plugin.version,
+                        dependency.getKey(), dependency.getValue());
+            }
+            Localizable reason = checkDeployable(candidate, visited);
+            if (reason != null) {
+                return reason;
+            }
+        }
+        return null;
+    }
+}
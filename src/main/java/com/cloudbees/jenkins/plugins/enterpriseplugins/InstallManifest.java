@@ -0,0 +1,280 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.plugins.enterpriseplugins;
+
+import com.cloudbees.jenkins.plugins.enterpriseplugins.PluginImpl.Dependency;
+import com.cloudbees.jenkins.plugins.enterpriseplugins.PluginImpl.InstallMode;
+import hudson.ProxyConfiguration;
+import jenkins.util.Timer;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The plugins to install for each {@link InstallMode}, parsed once from {@code install-manifest.txt}.
+ * <p/>
+ * The bundled manifest is checked in and regenerated by {@code list-enterprise-plugins.rb} when the CloudBees Jenkins
+ * Enterprise WAR changes, see the {@code update-install-manifest} profile. Setting the
+ * {@code com.cloudbees.jenkins.plugins.enterpriseplugins.InstallManifest.url} system property loads a manifest in
+ * the same format from that URL in the background, so that the plugin list can change without a release of this
+ * plugin. Only {@code https} and {@code file} URLs are accepted.
+ * <p/>
+ * Every entry must give a version and the manifest must end with an {@code [END]} line, so that a manifest cut short
+ * by a failed download is rejected rather than read as a shorter or less demanding one.
+ */
+class InstallManifest {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(InstallManifest.class.getName());
+
+    /**
+     * Where to load a remote manifest from, or {@code null} to use the bundled one.
+     */
+    public static String MANIFEST_URL = System.getProperty(InstallManifest.class.getName() + ".url");
+
+    /**
+     * The bundled manifest.
+     */
+    private static final String BUNDLED_MANIFEST = "install-manifest.txt";
+
+    /**
+     * The line that ends a manifest.
+     */
+    private static final String END = "[END]";
+
+    /**
+     * How long to wait for the remote manifest to connect and to send data, in milliseconds.
+     */
+    private static final int TIMEOUT = (int) TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * The most recently loaded manifest. Package-private so that tests can go back to the bundled manifest.
+     */
+    static volatile InstallManifest current;
+
+    /**
+     * Whether a remote manifest is being loaded.
+     */
+    private static final AtomicBoolean refreshing = new AtomicBoolean();
+
+    /**
+     * The plugins to install for each mode, in installation order.
+     */
+    private final Map<InstallMode, List<Dependency>> dependencies;
+
+    /**
+     * Constructor.
+     *
+     * @param dependencies the plugins to install for each mode, in installation order.
+     */
+    private InstallManifest(Map<InstallMode, List<Dependency>> dependencies) {
+        this.dependencies = dependencies;
+    }
+
+    /**
+     * Returns the current manifest, loading the bundled one if no manifest has been loaded yet. Never goes to the
+     * network, see {@link #refresh()}.
+     *
+     * @return the current manifest.
+     */
+    static InstallManifest get() {
+        InstallManifest manifest = current;
+        if (manifest == null) {
+            InputStream stream = InstallManifest.class.getResourceAsStream(BUNDLED_MANIFEST);
+            try {
+                manifest = parse(new InputStreamReader(stream, "UTF-8"));
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not load the bundled CloudBees install manifest", e);
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+            synchronized (InstallManifest.class) {
+                // a remote manifest that was loaded meanwhile takes precedence
+                if (current == null) {
+                    current = manifest;
+                }
+                manifest = current;
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Loads the remote manifest in the background, if one is configured, so that the following calls to
+     * {@link #get()} pick up any changes. The last good manifest stays in use if the remote one cannot be loaded or
+     * is incomplete.
+     *
+     * @return the pending load, or {@code null} if there is no remote manifest or it is already being loaded.
+     */
+    static Future<?> refresh() {
+        final String url = MANIFEST_URL;
+        if (url == null || !refreshing.compareAndSet(false, true)) {
+            return null;
+        }
+        return Timer.get().submit(new Runnable() {
+            public void run() {
+                try {
+                    InstallManifest manifest = load(new URL(url));
+                    synchronized (InstallManifest.class) {
+                        current = manifest;
+                    }
+                    LOGGER.log(Level.FINE, "Loaded the CloudBees install manifest from {0}", url);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not load the CloudBees install manifest from " + url
+                            + ", keeping the current manifest", e);
+                } finally {
+                    refreshing.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads a manifest from a URL.
+     *
+     * @param url the URL.
+     * @return the manifest.
+     * @throws IOException if the URL is neither {@code https} nor {@code file}, or if the manifest could not be loaded
+     *                     or is malformed.
+     */
+    static InstallManifest load(URL url) throws IOException {
+        if (!"https".equals(url.getProtocol()) && !"file".equals(url.getProtocol())) {
+            throw new IOException("Refusing to load the install manifest over " + url.getProtocol() + ": " + url);
+        }
+        URLConnection con = ProxyConfiguration.open(url);
+        con.setConnectTimeout(TIMEOUT);
+        con.setReadTimeout(TIMEOUT);
+        InputStream stream = con.getInputStream();
+        try {
+            return parse(new InputStreamReader(stream, "UTF-8"));
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Returns the plugins to install for a mode.
+     *
+     * @param installMode the mode.
+     * @return the plugins to install, in installation order.
+     */
+    List<Dependency> getDependencies(InstallMode installMode) {
+        return dependencies.get(installMode);
+    }
+
+    /**
+     * Parses a manifest. Every {@link InstallMode} must have a section listing at least one plugin, every plugin must
+     * have a version and the manifest must end with an {@code [END]} line. A plugin listed more than once in a
+     * section keeps its first position and the highest version.
+     *
+     * @param reader the manifest.
+     * @return the manifest.
+     * @throws IOException if the manifest could not be read or is malformed.
+     */
+    static InstallManifest parse(Reader reader) throws IOException {
+        Map<InstallMode, Map<String, Dependency>> sections =
+                new EnumMap<InstallMode, Map<String, Dependency>>(InstallMode.class);
+        Map<String, Dependency> section = null;
+        BufferedReader lines = new BufferedReader(reader);
+        int lineNumber = 0;
+        boolean ended = false;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            if (ended) {
+                throw new IOException("Content after " + END + " on line " + lineNumber + ": " + line);
+            }
+            if (END.equals(line)) {
+                ended = true;
+                continue;
+            }
+            if (line.startsWith("[") && line.endsWith("]")) {
+                InstallMode installMode;
+                try {
+                    installMode = InstallMode.valueOf(line.substring(1, line.length() - 1).trim());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Unknown install mode on line " + lineNumber + ": " + line);
+                }
+                section = sections.get(installMode);
+                if (section == null) {
+                    section = new LinkedHashMap<String, Dependency>();
+                    sections.put(installMode, section);
+                }
+                continue;
+            }
+            if (section == null) {
+                throw new IOException("Plugin listed before any install mode on line " + lineNumber + ": " + line);
+            }
+            String[] fields = line.split("\\s+");
+            // a line cut short loses its version first
+            if (fields.length < 2 || fields.length > 3 || (fields.length == 3 && !"optional".equals(fields[2]))) {
+                throw new IOException("Malformed entry on line " + lineNumber + ": " + line);
+            }
+            boolean optional = fields.length == 3;
+            Dependency dependency = new Dependency(fields[0], fields[1], optional, !optional);
+            Dependency existing = section.get(dependency.name);
+            if (existing == null || existing.version.isOlderThan(dependency.version)) {
+                section.put(dependency.name, dependency);
+            }
+        }
+        if (!ended) {
+            throw new IOException("The install manifest does not end with " + END);
+        }
+        Map<InstallMode, List<Dependency>> dependencies =
+                new EnumMap<InstallMode, List<Dependency>>(InstallMode.class);
+        for (InstallMode installMode : InstallMode.values()) {
+            // a truncated download must not leave a mode with nothing to install
+            Map<String, Dependency> entries = sections.get(installMode);
+            if (entries == null || entries.isEmpty()) {
+                throw new IOException("No plugins listed for install mode " + installMode);
+            }
+            dependencies.put(installMode,
+                    Collections.unmodifiableList(new ArrayList<Dependency>(entries.values())));
+        }
+        return new InstallManifest(dependencies);
+    }
+}
@@ -25,6 +25,7 @@ package com.cloudbees.jenkins.plugins.enterpriseplugins;
 
 import hudson.Extension;
 import hudson.model.ManagementLink;
+import hudson.util.FormValidation;
 import jenkins.model.Jenkins;
 import org.jvnet.localizer.Localizable;
 import org.kohsuke.stapler.HttpResponse;
@@ -32,6 +33,9 @@ import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.interceptor.RequirePOST;
 
+import java.util.List;
+import javax.servlet.http.HttpServletResponse;
+
 /**
  * Displays the enterprise plugins progress notices
  */
@@ -42,6 +46,10 @@ public class Notice extends ManagementLink {
         return PluginImpl.getStatus();
     }
 
+    public List<Localizable> getRejected() {
+        return PluginImpl.getRejectedPluginInstalls();
+    }
+
     @Override public String getIconFileName() {
         // TODO maybe get a CloudBees icon?
         return PluginImpl.isEverythingInstalled() ? null : "installer.png";
@@ -66,4 +74,18 @@ public class Notice extends ManagementLink {
         return HttpResponses.redirectToDot();
     }
 
+    public boolean isRollbackAvailable() {
+        return PluginImpl.isRollbackAvailable();
+    }
+
+    @RequirePOST
+    public HttpResponse doRollback() throws Exception {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        FormValidation result = PluginImpl.rollbackPluginInstalls();
+        if (result.kind == FormValidation.Kind.ERROR) {
+            return HttpResponses.error(HttpServletResponse.SC_CONFLICT, result.getMessage());
+        }
+        return HttpResponses.redirectToDot();
+    }
+
 }
@@ -0,0 +1,398 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.plugins.enterpriseplugins;
+
+import jenkins.model.Jenkins;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+
+/**
+ * A side store of the plugin archives that were in place before we installed or upgraded plugins, so that a bad
+ * release can be rolled back without going back to the network.
+ * <p/>
+ * Each installation run gets its own generation directory, named by its start time, holding a copy of every archive
+ * it replaced and an empty {@code .new} marker for every plugin it added.
+ */
+class PluginBackups {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(PluginBackups.class.getName());
+
+    /**
+     * The number of generations to keep.
+     */
+    private static final int MAX_GENERATIONS = 3;
+
+    /**
+     * The extensions that plugin archives can have.
+     */
+    private static final List<String> ARCHIVE_EXTENSIONS = Arrays.asList(".jpi", ".hpi");
+
+    /**
+     * The extension of the marker for plugins that were not installed before.
+     */
+    private static final String NEW_MARKER = ".new";
+
+    /**
+     * The extension of a restored archive that has been copied into the plugins directory but not renamed yet.
+     */
+    private static final String STAGED = ".tmp";
+
+    /**
+     * The extension of an archive that is being replaced, kept until the roll back has succeeded.
+     */
+    private static final String ASIDE = ".rollback";
+
+    /**
+     * The directory holding the generations.
+     */
+    private final File root;
+
+    /**
+     * The directory the plugin manager loads plugins from.
+     */
+    private final File pluginsDir;
+
+    /**
+     * Constructor.
+     *
+     * @param root       the directory holding the generations.
+     * @param pluginsDir the directory the plugin manager loads plugins from.
+     */
+    PluginBackups(File root, File pluginsDir) {
+        this.root = root;
+        this.pluginsDir = pluginsDir;
+    }
+
+    /**
+     * Returns the backups for the running Jenkins.
+     *
+     * @return the backups for the running Jenkins.
+     */
+    static PluginBackups get() {
+        Jenkins jenkins = Jenkins.getInstance();
+        return new PluginBackups(new File(jenkins.getRootDir(), "cloudbees-enterprise-plugins/backups"),
+                jenkins.getPluginManager().rootDir);
+    }
+
+    /**
+     * Starts a new generation, discarding the oldest ones beyond {@link #MAX_GENERATIONS}.
+     *
+     * @return the new generation.
+     * @throws IOException if the generation could not be created.
+     */
+    Generation begin() throws IOException {
+        List<File> generations = generations();
+        for (int i = 0; i <= generations.size() - MAX_GENERATIONS; i++) {
+            FileUtils.deleteDirectory(generations.get(i));
+        }
+        File dir = new File(root, Long.toString(System.currentTimeMillis()));
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Could not create " + dir);
+        }
+        return new Generation(dir);
+    }
+
+    /**
+     * Returns whether there is anything to roll back to.
+     *
+     * @return {@code true} if there is a generation that can be restored.
+     */
+    boolean isRollbackAvailable() {
+        File latest = latest();
+        String[] entries = latest == null ? null : latest.list();
+        return entries != null && entries.length > 0;
+    }
+
+    /**
+     * Restores the plugin archives recorded in the most recent generation and removes the plugins it added. The
+     * changes take effect on the next restart.
+     * <p/>
+     * Every archive is first copied next to its target, then the current archives are renamed aside and the copies
+     * renamed into place. If any step fails the renames done so far are undone, so the plugins directory is left as
+     * it was.
+     *
+     * @return the names of the plugins that were restored or removed.
+     * @throws IOException if the plugins could not be restored, naming the plugins that were not.
+     */
+    List<String> rollback() throws IOException {
+        File latest = latest();
+        if (latest == null) {
+            return Collections.emptyList();
+        }
+        List<String> names = new ArrayList<String>();
+        Map<String, File> archives = new HashMap<String, File>();
+        File[] entries = latest.listFiles();
+        for (File entry : entries == null ? new File[0] : entries) {
+            String fileName = entry.getName();
+            int dot = fileName.lastIndexOf('.');
+            if (dot == -1) {
+                continue;
+            }
+            String name = fileName.substring(0, dot);
+            String extension = fileName.substring(dot);
+            if (ARCHIVE_EXTENSIONS.contains(extension)) {
+                archives.put(name, entry);
+                names.add(name);
+            } else if (NEW_MARKER.equals(extension)) {
+                names.add(name);
+            }
+        }
+
+        // stage next to the targets so that the renames below are cheap and cannot run out of space
+        List<File> staged = new ArrayList<File>();
+        try {
+            for (File archive : archives.values()) {
+                File tmp = new File(pluginsDir, archive.getName() + STAGED);
+                staged.add(tmp);
+                FileUtils.copyFile(archive, tmp);
+            }
+        } catch (IOException e) {
+            deleteQuietly(staged);
+            throw new IOException("Could not roll back CloudBees plugins " + names + ", nothing was changed", e);
+        }
+
+        List<Rename> renames = new ArrayList<Rename>();
+        for (String name : names) {
+            for (String extension : ARCHIVE_EXTENSIONS) {
+                File current = new File(pluginsDir, name + extension);
+                if (current.exists()) {
+                    renames.add(new Rename(name, current, new File(pluginsDir, name + extension + ASIDE)));
+                }
+            }
+            File archive = archives.get(name);
+            if (archive != null) {
+                renames.add(new Rename(name, new File(pluginsDir, archive.getName() + STAGED),
+                        new File(pluginsDir, archive.getName())));
+            }
+        }
+        int done = 0;
+        try {
+            for (; done < renames.size(); done++) {
+                renames.get(done).apply();
+            }
+        } catch (IOException e) {
+            Set<String> notUndone = new TreeSet<String>();
+            while (done-- > 0) {
+                Rename rename = renames.get(done);
+                try {
+                    rename.undo();
+                } catch (IOException x) {
+                    LOGGER.log(Level.WARNING, "Could not undo the roll back of " + rename.name, x);
+                    notUndone.add(rename.name);
+                }
+            }
+            deleteQuietly(staged);
+            throw new IOException("Could not roll back CloudBees plugins " + names
+                    + (notUndone.isEmpty() ? ", nothing was changed" : ", and could not put back " + notUndone), e);
+        }
+
+        for (Rename rename : renames) {
+            if (rename.to.getName().endsWith(ASIDE) && !rename.to.delete()) {
+                LOGGER.log(Level.WARNING, "Could not delete {0}", rename.to);
+            }
+        }
+        for (String name : names) {
+            LOGGER.log(Level.INFO, "Rolled back CloudBees plugin: {0}", name);
+        }
+        FileUtils.deleteDirectory(latest);
+        return names;
+    }
+
+    /**
+     * Deletes files, ignoring any that cannot be deleted.
+     *
+     * @param files the files.
+     */
+    private static void deleteQuietly(List<File> files) {
+        for (File file : files) {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    /**
+     * Returns the most recent generation.
+     *
+     * @return the most recent generation or {@code null} if there are none.
+     */
+    @CheckForNull
+    private File latest() {
+        List<File> generations = generations();
+        return generations.isEmpty() ? null : generations.get(generations.size() - 1);
+    }
+
+    /**
+     * Returns the generations, oldest first.
+     *
+     * @return the generations, oldest first.
+     */
+    private List<File> generations() {
+        File[] dirs = root.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isDirectory() && file.getName().matches("\\d+");
+            }
+        });
+        List<File> result = new ArrayList<File>(Arrays.asList(dirs == null ? new File[0] : dirs));
+        Collections.sort(result, new Comparator<File>() {
+            public int compare(File o1, File o2) {
+                long t1 = Long.parseLong(o1.getName());
+                long t2 = Long.parseLong(o2.getName());
+                return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Renames a file, replacing the destination.
+     *
+     * @param src the file to rename.
+     * @param dst the destination.
+     * @throws IOException if the file could not be renamed.
+     */
+    private static void move(File src, File dst) throws IOException {
+        if (!src.renameTo(dst)) {
+            // some platforms will not rename over an existing file
+            if (!dst.delete() || !src.renameTo(dst)) {
+                throw new IOException("Could not rename " + src + " to " + dst);
+            }
+        }
+    }
+
+    /**
+     * A rename done by {@link #rollback()}, so that it can be undone.
+     */
+    private static class Rename {
+
+        /**
+         * The plugin short name.
+         */
+        private final String name;
+
+        /**
+         * The file to rename.
+         */
+        private final File from;
+
+        /**
+         * The destination.
+         */
+        private final File to;
+
+        /**
+         * Constructor.
+         *
+         * @param name the plugin short name.
+         * @param from the file to rename.
+         * @param to   the destination.
+         */
+        private Rename(String name, File from, File to) {
+            this.name = name;
+            this.from = from;
+            this.to = to;
+        }
+
+        void apply() throws IOException {
+            move(from, to);
+        }
+
+        void undo() throws IOException {
+            move(to, from);
+        }
+    }
+
+    /**
+     * A single installation run.
+     */
+    class Generation {
+
+        /**
+         * The directory holding this generation.
+         */
+        private final File dir;
+
+        /**
+         * Constructor.
+         *
+         * @param dir the directory holding this generation.
+         */
+        private Generation(File dir) {
+            this.dir = dir;
+        }
+
+        /**
+         * Returns whether this generation is still on disk, i.e. has not been rolled back or discarded.
+         *
+         * @return {@code true} if this generation can still record plugins.
+         */
+        boolean exists() {
+            return dir.isDirectory();
+        }
+
+        /**
+         * Records the current state of a plugin before it is installed or upgraded. Only the first state recorded
+         * for each plugin in a generation is kept.
+         *
+         * @param name the plugin short name.
+         * @throws IOException if the plugin archive could not be copied.
+         */
+        void record(String name) throws IOException {
+            if (new File(dir, name + NEW_MARKER).exists()) {
+                return;
+            }
+            for (String extension : ARCHIVE_EXTENSIONS) {
+                if (new File(dir, name + extension).exists()) {
+                    return;
+                }
+            }
+            for (String extension : ARCHIVE_EXTENSIONS) {
+                File archive = new File(pluginsDir, name + extension);
+                if (archive.isFile()) {
+                    File tmp = new File(dir, name + extension + ".tmp");
+                    FileUtils.copyFile(archive, tmp);
+                    move(tmp, new File(dir, name + extension));
+                    return;
+                }
+            }
+            FileUtils.touch(new File(dir, name + NEW_MARKER));
+        }
+    }
+}
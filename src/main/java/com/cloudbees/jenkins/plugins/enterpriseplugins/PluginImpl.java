@@ -44,8 +44,11 @@ import org.jvnet.localizer.Localizable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -79,6 +82,11 @@ public class PluginImpl extends Plugin {
             "http://nectar-updates.cloudbees.com/update-center.json"
     ));
 
+    /**
+     * The update center URL to configure, only ever changed by tests.
+     */
+    static String updateCenterUrl = CLOUDBEES_UPDATE_CENTER_URL;
+
     /**
      * The current update center ID.
      */
@@ -93,123 +101,16 @@ public class PluginImpl extends Plugin {
             "ichci"
     ));
 
-    private static final Dependency ASYNC_HTTP_CLIENT = require("async-http-client","1.7.8");
-    private static final Dependency CLOUDBEES_LICENSE = require("cloudbees-license", "7.1");
-    private static final Dependency NECTAR_LICENSE = require("nectar-license","7.1");
-    private static final Dependency FREE_LICENSE = optional("free-license", "7.0");
-    private static final String CJOC_VERSION = "1.7.0";
-    private static final Dependency OC_AGENT = require("operations-center-agent", CJOC_VERSION);
-    private static final Dependency OC_ANALYTICS = require("operations-center-analytics-reporter", CJOC_VERSION);
-    private static final Dependency OC_CONTEXT = require("operations-center-context", CJOC_VERSION);
-    private static final Dependency OC_CLIENT = require("operations-center-client", CJOC_VERSION);
-    private static final Dependency OC_CLOUD = require("operations-center-cloud", CJOC_VERSION);
-    private static final Dependency OC_OPENID_CSE = require("operations-center-openid-cse", CJOC_VERSION);
-    private static final String WORKFLOW_VERSION = "1.8";
-    private static final String CLOUDBEES_WORKFLOW_VERSION = "1.3";
-
     public enum InstallMode {
-        MINIMAL(ASYNC_HTTP_CLIENT, CLOUDBEES_LICENSE, NECTAR_LICENSE, FREE_LICENSE),
-        OC(ASYNC_HTTP_CLIENT, CLOUDBEES_LICENSE, NECTAR_LICENSE, FREE_LICENSE, OC_AGENT, OC_CONTEXT, OC_CLIENT, OC_CLOUD,
-                OC_OPENID_CSE, OC_ANALYTICS),
-        FULL(
-            require("metrics","3.0.11"), // put this first
-            require("support-core","2.25"), // put this second
-            CLOUDBEES_LICENSE, // put this third
-            require("cloudbees-support", "3.3"), // put this fourth
-            ASYNC_HTTP_CLIENT,
-            NECTAR_LICENSE,
-            FREE_LICENSE,
-            OC_AGENT, OC_CONTEXT, OC_CLIENT, OC_CLOUD, OC_OPENID_CSE, OC_ANALYTICS,
-            require("workflow-aggregator", WORKFLOW_VERSION),
-            require("workflow-api", WORKFLOW_VERSION),
-            require("workflow-basic-steps", WORKFLOW_VERSION),
-            require("workflow-cps", WORKFLOW_VERSION),
-            require("workflow-cps-global-lib", WORKFLOW_VERSION),
-            require("workflow-durable-task-step", WORKFLOW_VERSION),
-            require("workflow-job", WORKFLOW_VERSION),
-            require("workflow-scm-step", WORKFLOW_VERSION),
-            require("workflow-step-api", WORKFLOW_VERSION),
-            require("workflow-support", WORKFLOW_VERSION),
-            require("cloudbees-workflow-aggregator", CLOUDBEES_WORKFLOW_VERSION),
-            require("cloudbees-workflow-rest-api", CLOUDBEES_WORKFLOW_VERSION),
-            require("cloudbees-workflow-template", CLOUDBEES_WORKFLOW_VERSION),
-            require("cloudbees-workflow-ui", CLOUDBEES_WORKFLOW_VERSION),
-            require("workflow-cps-checkpoint", CLOUDBEES_WORKFLOW_VERSION),
-            require("cloudbees-ha","4.6"),
-            // The rest can be generated by list-enterprise-plugins.rb:
-            require("cloudbees-aborted-builds","1.6"),
-            require("cloudbees-aws-cli","1.4"),
-            require("cloudbees-aws-credentials","1.7"),
-            require("cloudbees-aws-deployer","1.13"),
-            require("cloudbees-consolidated-build-view","1.4"),
-            require("cloudbees-even-scheduler","3.5"),
-            require("cloudbees-folder","4.8"),
-            require("cloudbees-folders-plus","2.10"),
-            require("cloudbees-groovy-view","1.4"),
-            require("cloudbees-jsync-archiver","5.4"),
-            require("cloudbees-label-throttling-plugin","3.4"),
-            require("cloudbees-long-running-build","1.4"),
-            require("cloudbees-monitoring","1.7"),
-            require("cloudbees-nodes-plus","1.11"),
-            require("cloudbees-plugin-usage","1.5"),
-            require("cloudbees-quiet-start","1.1"),
-            require("cloudbees-secure-copy","3.7"),
-            require("cloudbees-ssh-slaves","1.2"),
-            require("cloudbees-template","4.17"),
-            require("cloudbees-view-creation-filter","1.2"),
-            require("cloudbees-wasted-minutes-tracker","3.7"),
-            require("copyartifact","1.35.1"),
-            require("credentials","1.22"),
-            require("dashboard-view","2.9.4"),
-            require("docker-build-publish","1.0"),
-            require("docker-commons","1.0"),
-            require("docker-traceability","1.0"),
-            require("docker-workflow","1.0"),
-            require("dockerhub-notification","1.0.2"),
-            require("durable-task","1.5"),
-            require("external-monitor-job","1.4"),
-            require("git","2.3.5"),
-            require("git-client","1.17.1"),
-            require("git-server","1.6"),
-            require("git-validated-merge","3.18"),
-            require("github","1.11.3"),
-            require("github-api","1.68"),
-            require("github-pull-request-build","1.6"),
-            require("infradna-backup","3.20"),
-            require("javadoc","1.3"),
-            require("junit","1.6"),
-            require("ldap","1.11"),
-            require("mailer","1.15"),
-            require("matrix-auth","1.2"),
-            require("matrix-project","1.5"),
-            require("maven-plugin","2.10"),
-            require("mercurial","1.52"),
-            require("nectar-rbac","4.15"),
-            require("nectar-vmware","4.3.4"),
-            require("node-iterator-api","1.5"),
-            require("openid","2.1.1"),
-            require("openid4java","0.9.8.0"),
-            require("pam-auth","1.2"),
-            require("parameterized-trigger","2.26"),
-            require("promoted-builds","2.21"),
-            require("scm-api","0.2"),
-            require("script-security","1.14"),
-            require("skip-plugin","3.6"),
-            require("ssh-agent","1.7"),
-            require("ssh-credentials","1.11"),
-            require("ssh-slaves","1.9"),
-            require("suppress-stack-trace","1.3"),
-            require("token-macro","1.10"),
-            require("translation","1.12"),
-            require("unique-id","2.0.2"),
-            require("wikitext","3.6")
-        );
+        MINIMAL,
+        OC,
+        FULL;
+
         /**
-         * The plugins that can and/or should be installed/upgraded.
+         * The plugins that can and/or should be installed/upgraded, as listed in the {@link InstallManifest}.
          */
-        public final Dependency[] dependencies;
-        private InstallMode(Dependency... dependencies) {
-            this.dependencies = dependencies;
+        List<Dependency> getDependencies() {
+            return InstallManifest.get().getDependencies(this);
         }
     }
 
@@ -225,6 +126,46 @@ public class PluginImpl extends Plugin {
      */
     private static DelayedInstaller worker = null;
 
+    /**
+     * Whether {@link #rollbackPluginInstalls()} is restoring plugins, during which no installation may start.
+     * <p/>
+     * Guarded by {@link #pendingPluginInstalls}.
+     */
+    private static boolean rollingBack = false;
+
+    /**
+     * Whether a restart to activate the deployed plugins has been scheduled, during which no installation may start
+     * as the restart would interrupt it.
+     * <p/>
+     * Guarded by {@link #pendingPluginInstalls}.
+     */
+    private static boolean restartScheduled = false;
+
+    /**
+     * The plugin installations that were rejected as incompatible, with the reason why.
+     * <p/>
+     * Guarded by {@link #pendingPluginInstalls}.
+     */
+    private static final Map<String, Localizable> rejectedPluginInstalls = new LinkedHashMap<String, Localizable>();
+
+    /**
+     * The versions deployed since startup keyed by plugin name. The plugin manager keeps reporting the old versions
+     * until restart, so this is what stops a plugin that is scheduled again, possibly by a later request that starts
+     * a new {@link DelayedInstaller}, from being deployed twice.
+     * <p/>
+     * Guarded by {@link #pendingPluginInstalls}.
+     */
+    private static final Map<String, String> deployedVersions = new HashMap<String, String>();
+
+    /**
+     * Where the plugins replaced since startup are kept for rollback, created on the first deployment. Every
+     * installation run until the restart that activates them shares it, so that a roll back restores the plugins as
+     * they were before all of them.
+     * <p/>
+     * Guarded by {@link #pendingPluginInstalls}.
+     */
+    private static PluginBackups.Generation backups = null;
+
     /**
      * The current status.
      */
@@ -242,6 +183,7 @@ public class PluginImpl extends Plugin {
     @Override
     public void start() throws Exception {
         LOGGER.log(Level.INFO, "Started...");
+        InstallManifest.refresh();
         try {
             load();
         } catch (Throwable e) {
@@ -304,6 +246,17 @@ public class PluginImpl extends Plugin {
         return status;
     }
 
+    /**
+     * Returns the reasons why plugins were not installed.
+     *
+     * @return the reasons why plugins were not installed, in the order they were rejected.
+     */
+    public static List<Localizable> getRejectedPluginInstalls() {
+        synchronized (pendingPluginInstalls) {
+            return new ArrayList<Localizable>(rejectedPluginInstalls.values());
+        }
+    }
+
     @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED)
     public static void removeUpdateCenter() throws Exception {
         LOGGER.log(Level.FINE, "Checking whether the official CloudBees update center has been configured.");
@@ -358,7 +311,7 @@ public class PluginImpl extends Plugin {
                         LOGGER.log(Level.FINE, "Found possible match:\n  class = {0}\n  url = {1}\n  id = {2}",
                                 new Object[]{site.getClass().getName(), site.getUrl(), site.getId()});
                         boolean valid = site instanceof CloudBeesUpdateSite
-                                && CLOUDBEES_UPDATE_CENTER_URL.equals(site.getUrl())
+                                && updateCenterUrl.equals(site.getUrl())
                                 && CLOUDBEES_UPDATE_CENTER_ID.equals(site.getId());
                         if (found || !valid) {
                             // remove old and duplicate entries
@@ -383,7 +336,7 @@ public class PluginImpl extends Plugin {
                         }
                         if (!found) {
                             LOGGER.info("Adding CloudBees Update Center to list of update centers");
-                            sites.add(new CloudBeesUpdateSite(CLOUDBEES_UPDATE_CENTER_ID, CLOUDBEES_UPDATE_CENTER_URL));
+                            sites.add(new CloudBeesUpdateSite(CLOUDBEES_UPDATE_CENTER_ID, updateCenterUrl));
                         }
                     } finally {
                         bc.commit();
@@ -401,13 +354,11 @@ public class PluginImpl extends Plugin {
     public static boolean isEverythingInstalled() {
         PluginImpl instance = Jenkins.getInstance().getPlugin(PluginImpl.class);
         if (instance != null && instance.isInstalled()) {
-            for (Dependency pluginArtifactId : InstallMode.FULL.dependencies) {
-                if (pluginArtifactId.mandatory) {
-                    LOGGER.log(Level.FINE, "Checking {0}.", pluginArtifactId.name);
-                    PluginWrapper plugin = Jenkins.getInstance().getPluginManager().getPlugin(pluginArtifactId.name);
-                    if (plugin == null) {
-                        return false;
-                    }
+            Map<String, PluginWrapper> installed = getInstalledPlugins();
+            for (Dependency pluginArtifactId : InstallMode.FULL.getDependencies()) {
+                if (pluginArtifactId.mandatory && !installed.containsKey(pluginArtifactId.name)) {
+                    LOGGER.log(Level.FINE, "Missing {0}.", pluginArtifactId.name);
+                    return false;
                 }
             }
             return true;
@@ -419,9 +370,12 @@ public class PluginImpl extends Plugin {
     public static void installPlugins(InstallMode installMode) throws Exception {
         addUpdateCenter();
         LOGGER.log(Level.INFO, "Checking that the CloudBees plugins have been installed.");
-        for (Dependency pluginArtifactId : installMode.dependencies) {
+        // picked up by the next request, this one goes with the manifest already loaded
+        InstallManifest.refresh();
+        Map<String, PluginWrapper> installed = getInstalledPlugins();
+        for (Dependency pluginArtifactId : installMode.getDependencies()) {
             LOGGER.log(Level.FINE, "Checking {0}.", pluginArtifactId.name);
-            PluginWrapper plugin = Jenkins.getInstance().getPluginManager().getPlugin(pluginArtifactId.name);
+            PluginWrapper plugin = installed.get(pluginArtifactId.name);
             if (plugin == null && !pluginArtifactId.optional) {
                 // not installed and mandatory
                 scheduleInstall(pluginArtifactId);
@@ -446,12 +400,7 @@ public class PluginImpl extends Plugin {
         boolean finished;
         synchronized (pendingPluginInstalls) {
             finished = pendingPluginInstalls.isEmpty();
-            if (!finished && (worker == null || !worker.isAlive())) {
-                LOGGER.info("Starting background thread for core plugin installation");
-                worker = new DelayedInstaller();
-                worker.setDaemon(true);
-                worker.start();
-            } else {
+            if (finished || !startWorker()) {
                 LOGGER.log(Level.INFO, "Nothing to do");
             }
         }
@@ -461,8 +410,195 @@ public class PluginImpl extends Plugin {
         }
     }
 
+    /**
+     * Starts the background installation thread unless it is already running or a roll back or restart is in
+     * progress. Must be called holding the {@link #pendingPluginInstalls} lock.
+     *
+     * @return {@code true} if a thread was started.
+     */
+    private static boolean startWorker() {
+        if (rollingBack || restartScheduled || (worker != null && worker.isAlive())) {
+            return false;
+        }
+        LOGGER.info("Starting background thread for core plugin installation");
+        worker = new DelayedInstaller();
+        worker.setDaemon(true);
+        worker.start();
+        return true;
+    }
+
+    /**
+     * Returns whether plugins are queued for installation or being installed.
+     *
+     * @return {@code true} if plugins are queued for installation or being installed.
+     */
+    static boolean isInstalling() {
+        synchronized (pendingPluginInstalls) {
+            return !pendingPluginInstalls.isEmpty() || (worker != null && worker.isAlive());
+        }
+    }
+
+    /**
+     * Returns the names of the plugins queued for installation.
+     *
+     * @return the names of the plugins queued for installation, in order.
+     */
+    static List<String> getPendingPluginInstalls() {
+        synchronized (pendingPluginInstalls) {
+            List<String> names = new ArrayList<String>();
+            for (Dependency pending : pendingPluginInstalls) {
+                names.add(pending.name);
+            }
+            return names;
+        }
+    }
+
+    /**
+     * Returns the installed plugins keyed by short name, as {@link hudson.PluginManager#getPlugin(String)} searches
+     * the plugin list on every call.
+     *
+     * @return the installed plugins keyed by short name.
+     */
+    private static Map<String, PluginWrapper> getInstalledPlugins() {
+        Map<String, PluginWrapper> result = new HashMap<String, PluginWrapper>();
+        for (PluginWrapper plugin : Jenkins.getInstance().getPluginManager().getPlugins()) {
+            result.put(plugin.getShortName(), plugin);
+        }
+        return result;
+    }
+
+    public static boolean isRollbackAvailable() {
+        return PluginBackups.get().isRollbackAvailable();
+    }
+
+    /**
+     * Restores the plugins as they were before the most recent installation run, using the copies kept by
+     * {@link PluginBackups} rather than downloading anything, and schedules a restart to activate them.
+     *
+     * @return the outcome, an error if plugins are being installed or could not be restored.
+     */
+    public static FormValidation rollbackPluginInstalls() {
+        synchronized (pendingPluginInstalls) {
+            if (rollingBack || (worker != null && worker.isAlive())) {
+                return FormValidation.error(Messages.Notice_rollbackWhileInstalling());
+            }
+            rollingBack = true;
+        }
+        List<String> names;
+        try {
+            // copying the archives can take a while, do not hold up doInstall requests and status polls meanwhile
+            names = PluginBackups.get().rollback();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not roll back CloudBees plugins", e);
+            synchronized (pendingPluginInstalls) {
+                rollingBack = false;
+                if (!pendingPluginInstalls.isEmpty()) {
+                    startWorker();
+                }
+            }
+            return FormValidation.error(Messages.Notice_rollbackFailed(e.getMessage()));
+        }
+        LOGGER.log(Level.INFO, "Rolled back CloudBees plugins: {0}", names);
+        synchronized (pendingPluginInstalls) {
+            rollingBack = false;
+            if (!names.isEmpty()) {
+                // anything requested meanwhile was planned against the plugins that have just been replaced
+                pendingPluginInstalls.clear();
+                rejectedPluginInstalls.clear();
+                // what we deployed is gone, installing it again must deploy it again
+                deployedVersions.keySet().removeAll(names);
+                backups = null;
+            } else if (!pendingPluginInstalls.isEmpty()) {
+                startWorker();
+            }
+        }
+        if (names.isEmpty()) {
+            return FormValidation.ok();
+        }
+        PluginImpl instance = Jenkins.getInstance().getPlugin(PluginImpl.class);
+        if (instance != null) {
+            instance.setInstalled(false);
+        }
+        status = Messages._Notice_rolledBack();
+        scheduleRestart();
+        return FormValidation.ok();
+    }
+
+    private static void scheduleRestart() {
+        try {
+            Jenkins.getInstance().safeRestart();
+            // if the user manually cancelled the quiet down, reflect that in the status message
+            Timer.get().scheduleAtFixedRate(new SafeTimerTask() {
+                @Override
+                protected void doRun() throws Exception {
+                    if (!Jenkins.getInstance().isQuietingDown()) {
+                        status = null;
+                        restartCancelled();
+                    }
+                }
+            }, 1000, 1000, TimeUnit.MILLISECONDS);
+        } catch (RestartNotSupportedException exception) {
+            // ignore if restart is not allowed
+            status = Messages._Notice_restartRequired();
+            restartCancelled();
+        }
+    }
+
+    /**
+     * Lets installations start again once it is clear that no restart is going to interrupt them, picking up
+     * anything that was queued while the restart was pending.
+     */
+    private static void restartCancelled() {
+        synchronized (pendingPluginInstalls) {
+            if (restartScheduled) {
+                restartScheduled = false;
+                if (!pendingPluginInstalls.isEmpty()) {
+                    startWorker();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the version of a plugin deployed since startup.
+     *
+     * @param name the plugin short name.
+     * @return the version deployed since startup or {@code null} if the plugin has not been deployed.
+     */
+    @CheckForNull
+    private static String getDeployedVersion(String name) {
+        synchronized (pendingPluginInstalls) {
+            return deployedVersions.get(name);
+        }
+    }
+
+    /**
+     * Records the version of a plugin that has been deployed.
+     *
+     * @param name    the plugin short name.
+     * @param version the version deployed.
+     */
+    private static void setDeployedVersion(String name, String version) {
+        synchronized (pendingPluginInstalls) {
+            deployedVersions.put(name, version);
+        }
+    }
+
     private static void scheduleInstall(Dependency pluginArtifactId) {
         synchronized (pendingPluginInstalls) {
+            rejectedPluginInstalls.remove(pluginArtifactId.name);
+            // concurrent installPlugins calls must not queue the same plugin twice
+            for (int i = 0; i < pendingPluginInstalls.size(); i++) {
+                Dependency pending = pendingPluginInstalls.get(i);
+                if (pending.name.equals(pluginArtifactId.name)) {
+                    if (pluginArtifactId.version != null
+                            && (pending.version == null || pending.version.isOlderThan(pluginArtifactId.version))) {
+                        LOGGER.log(Level.FINE, "Rescheduling installation of {0}", pluginArtifactId.name);
+                        pendingPluginInstalls.set(i, pluginArtifactId);
+                    }
+                    return;
+                }
+            }
             LOGGER.log(Level.FINE, "Scheduling installation of {0}", pluginArtifactId.name);
             pendingPluginInstalls.add(pluginArtifactId);
         }
@@ -472,6 +608,11 @@ public class PluginImpl extends Plugin {
 
         private long nextWarning;
 
+        /**
+         * Whether anything was deployed, i.e. whether a restart is needed.
+         */
+        private boolean deployed;
+
         @Override
         public void run() {
             nextWarning = 0;
@@ -498,30 +639,26 @@ public class PluginImpl extends Plugin {
                             // ignore
                         }
                     }
-                }
-                if (!loop) {
-                    try {
+                    if (!loop && deployed) {
                         status = Messages._Notice_scheduledRestart();
                         try {
                             Thread.sleep(5000);
                         } catch (InterruptedException e) {
                             // ignore
                         }
-                        Jenkins.getInstance().safeRestart();
-                        // if the user manually cancelled the quiet down, reflect that in the status message
-                        Timer.get().scheduleAtFixedRate(new SafeTimerTask() {
-                            @Override
-                            protected void doRun() throws Exception {
-                                if (!Jenkins.getInstance().isQuietingDown()) {
-                                    status = null;
-                                }
-                            }
-                        }, 1000, 1000, TimeUnit.MILLISECONDS);
-                    } catch (RestartNotSupportedException exception) {
-                        // ignore if restart is not allowed
-                        status = Messages._Notice_restartRequired();
+                        synchronized (pendingPluginInstalls) {
+                            // the restart would kill any installation started for what was queued meanwhile
+                            loop = !pendingPluginInstalls.isEmpty();
+                            restartScheduled = !loop;
+                        }
                     }
                 }
+                if (!deployed) {
+                    // nothing needed a restart, only report a failure if something was actually rejected
+                    status = getRejectedPluginInstalls().isEmpty() ? null : Messages._Notice_nothingInstalled();
+                } else {
+                    scheduleRestart();
+                }
             } finally {
                 LOGGER.info("Background thread for core plugin installation finished.");
                 boolean finished;
@@ -530,6 +667,10 @@ public class PluginImpl extends Plugin {
                         worker = null;
                     }
                     finished = pendingPluginInstalls.isEmpty();
+                    if (!finished) {
+                        // scheduled after our last pass, while installPlugins still saw us alive
+                        startWorker();
+                    }
                 }
                 PluginImpl instance = Jenkins.getInstance().getPlugin(PluginImpl.class);
                 if (finished && instance != null) {
@@ -539,64 +680,50 @@ public class PluginImpl extends Plugin {
         }
 
         private boolean progressPluginInstalls() {
-            synchronized (pendingPluginInstalls) {
-                while (!pendingPluginInstalls.isEmpty()) {
-                    Dependency pluginArtifactId = pendingPluginInstalls.get(0);
-                    UpdateSite.Plugin p = Jenkins.getInstance()
-                            .getUpdateCenter()
-                            .getSite(CLOUDBEES_UPDATE_CENTER_ID)
-                            .getPlugin(pluginArtifactId.name);
-                    if (p == null) {
-                        if (System.currentTimeMillis() > nextWarning) {
-                            LOGGER.log(Level.WARNING,
-                                    "Cannot find core plugin {0}, the CloudBees free plugins cannot be "
-                                            + "installed without this core plugin. Will try again later.",
-                                    pluginArtifactId.name);
-                            nextWarning = System.currentTimeMillis() + TimeUnit2.HOURS.toMillis(1);
-                        }
-                        break;
-                    } else if (p.getInstalled() != null && p.getInstalled().isEnabled()) {
-                        PluginWrapper plugin = Jenkins.getInstance().getPluginManager().getPlugin(pluginArtifactId.name);
-                        if (plugin != null && plugin.getVersionNumber().compareTo(pluginArtifactId.version) < 0) {
-                            LOGGER.log(Level.INFO, "Upgrading CloudBees plugin: {0}", pluginArtifactId.name);
-                            status = Messages._Notice_upgradingPlugin(p.getDisplayName(), p.version);
-                            SecurityContext old = ACL.impersonate(ACL.SYSTEM);
-                            try {
-                                p.deploy().get();
-                                LOGGER.log(Level.INFO, "Upgraded CloudBees plugin: {0} to {1}", new Object[] {pluginArtifactId.name, p.version});
-                                pendingPluginInstalls.remove(0);
-                                nextWarning = 0;
-                                status = Messages._Notice_upgradedPlugin(p.getDisplayName(), p.version);
-                            } catch (Throwable e) {
-                                if (System.currentTimeMillis() > nextWarning) {
-                                    LOGGER.log(Level.WARNING,
-                                            "Cannot upgrade CloudBees plugin: " + pluginArtifactId.name + " to "
-                                                    + p.version, e);
-                                    nextWarning = System.currentTimeMillis() + TimeUnit2.MINUTES.toMillis(1);
-                                }
-                                break;
-                            } finally {
-                                SecurityContextHolder.setContext(old);
-                            }
-                        } else {
-                            LOGGER.log(Level.INFO, "Detected previous installation of CloudBees plugin: {0}", pluginArtifactId.name);
-                            pendingPluginInstalls.remove(0);
-                            nextWarning = 0;
+            UpdateSite cloudbeesSite = Jenkins.getInstance().getUpdateCenter().getSite(CLOUDBEES_UPDATE_CENTER_ID);
+            CompatibilityIndex index = new CompatibilityIndex(Jenkins.getInstance().getUpdateCenter(),
+                    Jenkins.getInstance().getPluginManager());
+            // do not hold the lock while downloading, otherwise doInstall requests block until the download completes
+            Dependency pluginArtifactId;
+            while ((pluginArtifactId = nextPluginInstall()) != null) {
+                UpdateSite.Plugin p = cloudbeesSite.getPlugin(pluginArtifactId.name);
+                if (p == null) {
+                    if (System.currentTimeMillis() > nextWarning) {
+                        LOGGER.log(Level.WARNING,
+                                "Cannot find core plugin {0}, the CloudBees free plugins cannot be "
+                                        + "installed without this core plugin. Will try again later.",
+                                pluginArtifactId.name);
+                        nextWarning = System.currentTimeMillis() + TimeUnit2.HOURS.toMillis(1);
+                    }
+                    break;
+                } else if (p.version.equals(getDeployedVersion(pluginArtifactId.name))
+                        && (pluginArtifactId.version == null
+                        || !pluginArtifactId.version.isNewerThan(new VersionNumber(p.version)))) {
+                    // scheduled again while we were deploying it, the plugin manager will not notice until restart
+                    LOGGER.log(Level.FINE, "Already deployed CloudBees plugin: {0} version {1}",
+                            new Object[]{pluginArtifactId.name, p.version});
+                    completePluginInstall(pluginArtifactId);
+                } else if (p.getInstalled() != null && p.getInstalled().isEnabled()) {
+                    PluginWrapper plugin = Jenkins.getInstance().getPluginManager().getPlugin(pluginArtifactId.name);
+                    if (plugin != null && plugin.getVersionNumber().compareTo(pluginArtifactId.version) < 0) {
+                        if (reject(pluginArtifactId, p, index)) {
+                            continue;
                         }
-                    } else {
-                        LOGGER.log(Level.INFO, "Installing CloudBees plugin: {0} version {1}", new Object[] {pluginArtifactId.name, p.version});
-                        status = Messages._Notice_installingPlugin(p.getDisplayName());
+                        LOGGER.log(Level.INFO, "Upgrading CloudBees plugin: {0}", pluginArtifactId.name);
+                        status = Messages._Notice_upgradingPlugin(p.getDisplayName(), p.version);
+                        backup(p);
                         SecurityContext old = ACL.impersonate(ACL.SYSTEM);
                         try {
-                            p.deploy().get();
-                            LOGGER.log(Level.INFO, "Installed CloudBees plugin: {0} version {1}", new Object[] {pluginArtifactId.name, p.version});
-                            pendingPluginInstalls.remove(0);
-                            nextWarning = 0;
-                            status = Messages._Notice_installedPlugin(p.getDisplayName());
+                            deploy(p);
+                            LOGGER.log(Level.INFO, "Upgraded CloudBees plugin: {0} to {1}", new Object[] {pluginArtifactId.name, p.version});
+                            completePluginInstall(pluginArtifactId);
+                            setDeployedVersion(pluginArtifactId.name, p.version);
+                            deployed = true;
+                            status = Messages._Notice_upgradedPlugin(p.getDisplayName(), p.version);
                         } catch (Throwable e) {
                             if (System.currentTimeMillis() > nextWarning) {
                                 LOGGER.log(Level.WARNING,
-                                        "Cannot install CloudBees plugin: " + pluginArtifactId.name + " version "
+                                        "Cannot upgrade CloudBees plugin: " + pluginArtifactId.name + " to "
                                                 + p.version, e);
                                 nextWarning = System.currentTimeMillis() + TimeUnit2.MINUTES.toMillis(1);
                             }
@@ -604,32 +731,150 @@ public class PluginImpl extends Plugin {
                         } finally {
                             SecurityContextHolder.setContext(old);
                         }
+                    } else {
+                        LOGGER.log(Level.INFO, "Detected previous installation of CloudBees plugin: {0}", pluginArtifactId.name);
+                        completePluginInstall(pluginArtifactId);
+                    }
+                } else if (reject(pluginArtifactId, p, index)) {
+                    continue;
+                } else {
+                    LOGGER.log(Level.INFO, "Installing CloudBees plugin: {0} version {1}", new Object[] {pluginArtifactId.name, p.version});
+                    status = Messages._Notice_installingPlugin(p.getDisplayName());
+                    backup(p);
+                    SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+                    try {
+                        deploy(p);
+                        LOGGER.log(Level.INFO, "Installed CloudBees plugin: {0} version {1}", new Object[] {pluginArtifactId.name, p.version});
+                        completePluginInstall(pluginArtifactId);
+                        setDeployedVersion(pluginArtifactId.name, p.version);
+                        deployed = true;
+                        status = Messages._Notice_installedPlugin(p.getDisplayName());
+                    } catch (Throwable e) {
+                        if (System.currentTimeMillis() > nextWarning) {
+                            LOGGER.log(Level.WARNING,
+                                    "Cannot install CloudBees plugin: " + pluginArtifactId.name + " version "
+                                            + p.version, e);
+                            nextWarning = System.currentTimeMillis() + TimeUnit2.MINUTES.toMillis(1);
+                        }
+                        break;
+                    } finally {
+                        SecurityContextHolder.setContext(old);
                     }
                 }
+            }
+            synchronized (pendingPluginInstalls) {
                 return !pendingPluginInstalls.isEmpty();
             }
         }
-    }
 
-    private static Dependency require(String name) {
-        return require(name, null);
-    }
+        /**
+         * Deploys a plugin and waits for the download to complete.
+         *
+         * @param p the plugin to deploy.
+         * @throws Exception if the plugin could not be deployed.
+         */
+        private void deploy(UpdateSite.Plugin p) throws Exception {
+            UpdateCenter.UpdateCenterJob job = p.deploy().get();
+            // the future completes normally even when the download failed, the outcome is in the job status
+            if (job instanceof UpdateCenter.DownloadJob) {
+                UpdateCenter.DownloadJob.InstallationStatus result = ((UpdateCenter.DownloadJob) job).status;
+                if (result instanceof UpdateCenter.DownloadJob.Failure) {
+                    throw new IOException("Could not download " + p.name + " version " + p.version,
+                            ((UpdateCenter.DownloadJob.Failure) result).problem);
+                }
+            }
+        }
 
-    private static Dependency require(String name, String version) {
-        return new Dependency(name, version, false, true);
-    }
+        /**
+         * Keeps a copy of the installed archives of a plugin and of any dependencies it will deploy, so that
+         * {@link #rollbackPluginInstalls()} can restore them.
+         *
+         * @param p the plugin about to be deployed.
+         */
+        private void backup(UpdateSite.Plugin p) {
+            try {
+                PluginBackups.Generation backups;
+                boolean begun = false;
+                synchronized (pendingPluginInstalls) {
+                    if (PluginImpl.backups == null || !PluginImpl.backups.exists()) {
+                        PluginImpl.backups = PluginBackups.get().begin();
+                        begun = true;
+                    }
+                    backups = PluginImpl.backups;
+                }
+                if (begun) {
+                    // offer the roll back of this run even if the previous one was dismissed
+                    RollbackMonitor.reset();
+                }
+                backups.record(p.name);
+                for (UpdateSite.Plugin dependency : p.getNeededDependencies()) {
+                    backups.record(dependency.name);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not back up CloudBees plugin: " + p.name
+                        + ", it will not be possible to roll it back", e);
+            }
+        }
 
-    private static Dependency optional(String name, @CheckForNull String version) {
-        return new Dependency(name, version, true, false);
+        /**
+         * Returns the head of {@link #pendingPluginInstalls} without removing it.
+         *
+         * @return the head of {@link #pendingPluginInstalls} or {@code null} if there is nothing left to install.
+         */
+        @CheckForNull
+        private Dependency nextPluginInstall() {
+            synchronized (pendingPluginInstalls) {
+                return pendingPluginInstalls.isEmpty() ? null : pendingPluginInstalls.get(0);
+            }
+        }
+
+        /**
+         * Removes a plugin installation from {@link #pendingPluginInstalls} once it has been dealt with. If
+         * {@link #scheduleInstall(Dependency)} replaced the entry in the meantime, the replacement stays queued.
+         *
+         * @param pluginArtifactId the plugin installation that has been dealt with.
+         */
+        private void completePluginInstall(Dependency pluginArtifactId) {
+            synchronized (pendingPluginInstalls) {
+                pendingPluginInstalls.remove(pluginArtifactId);
+            }
+            nextWarning = 0;
+        }
+
+        /**
+         * Removes a plugin installation from {@link #pendingPluginInstalls} without downloading anything if the
+         * update site's version of the plugin cannot work here.
+         *
+         * @param pluginArtifactId the plugin installation.
+         * @param p                the plugin as offered by the update site.
+         * @param index            the compatibility index to check against.
+         * @return {@code true} if the plugin was rejected.
+         */
+        private boolean reject(Dependency pluginArtifactId, UpdateSite.Plugin p, CompatibilityIndex index) {
+            Localizable reason = index.check(p, pluginArtifactId.version);
+            if (reason == null) {
+                return false;
+            }
+            LOGGER.log(Level.WARNING, "Not installing CloudBees plugin {0}: {1}",
+                    new Object[]{pluginArtifactId.name, reason});
+            synchronized (pendingPluginInstalls) {
+                if (pendingPluginInstalls.remove(pluginArtifactId)) {
+                    rejectedPluginInstalls.put(pluginArtifactId.name, reason);
+                }
+            }
+            nextWarning = 0;
+            status = Messages._Notice_rejectedPlugin(p.getDisplayName());
+            return true;
+        }
     }
 
-    private static class Dependency {
+    static class Dependency {
         public final String name;
         public final VersionNumber version;
         public final boolean optional;
         public final boolean mandatory;
 
-        private Dependency(String name, String version, boolean optional, boolean mandatory) {
+        Dependency(String name, @CheckForNull String version, boolean optional, boolean mandatory) {
             this.name = name;
             this.version = version == null ? null : new VersionNumber(version);
             this.optional = optional;
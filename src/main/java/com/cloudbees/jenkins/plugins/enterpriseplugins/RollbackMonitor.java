@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.plugins.enterpriseplugins;
+
+import hudson.Extension;
+import hudson.model.AdministrativeMonitor;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Offers to roll back the most recent installation of the CloudBees plugins on Manage Jenkins, as {@link Notice} is
+ * only listed there while plugins remain to be installed. Once dismissed it stays hidden until the next installation.
+ */
+@Extension
+public class RollbackMonitor extends AdministrativeMonitor {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(RollbackMonitor.class.getName());
+
+    @Override
+    public boolean isActivated() {
+        return PluginImpl.isRollbackAvailable();
+    }
+
+    /**
+     * Returns the URL of the page to roll back from, relative to the root URL.
+     *
+     * @return the URL of the page to roll back from.
+     */
+    public String getNoticeUrl() {
+        return "install-cloudbees-enterprise-plugins";
+    }
+
+    @RequirePOST
+    public HttpResponse doDismiss() throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        disable(true);
+        return HttpResponses.forwardToPreviousPage();
+    }
+
+    /**
+     * Shows the monitor again if it was dismissed, as there is a new installation to roll back.
+     */
+    static void reset() {
+        Jenkins jenkins = Jenkins.getInstance();
+        AdministrativeMonitor monitor = jenkins == null ? null
+                : jenkins.getAdministrativeMonitor(RollbackMonitor.class.getName());
+        if (monitor != null && !monitor.isEnabled()) {
+            try {
+                monitor.disable(false);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not show the CloudBees plugins roll back notice again", e);
+            }
+        }
+    }
+}
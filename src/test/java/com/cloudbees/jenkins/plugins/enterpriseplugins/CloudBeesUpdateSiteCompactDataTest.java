@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.plugins.enterpriseplugins;
+
+import hudson.model.UpdateSite;
+import hudson.util.TextFile;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.cloudbees.jenkins.plugins.enterpriseplugins.StubUpdateCenter.depend;
+import static com.cloudbees.jenkins.plugins.enterpriseplugins.StubUpdateCenter.plugin;
+import static com.cloudbees.jenkins.plugins.enterpriseplugins.StubUpdateCenter.updateCenter;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures what {@link CloudBeesUpdateSite#COMPACT_DATA} saves in the strings retained by the fields of
+ * {@link UpdateSite.Plugin}, including the unique ones such as URLs and descriptions that it leaves alone.
+ */
+public class CloudBeesUpdateSiteCompactDataTest {
+
+    private static final Logger LOGGER = Logger.getLogger(CloudBeesUpdateSiteCompactDataTest.class.getName());
+
+    private static final int PLUGINS = 500;
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Before
+    public void writeMetadata() throws Exception {
+        List<JSONObject> plugins = new ArrayList<JSONObject>();
+        for (int i = 0; i < PLUGINS; i++) {
+            JSONObject plugin = plugin("plugin-" + i, "1.0", "http://example.com/plugin-" + i + ".hpi");
+            plugin.put("wiki", "https://wiki.jenkins-ci.org/display/JENKINS/plugin-" + i);
+            plugin.put("excerpt", "The plugin-" + i
+                    + " plugin adds a build step that does something useful with the workspace of each build.");
+            JSONArray labels = new JSONArray();
+            labels.add("misc");
+            plugin.put("labels", labels);
+            depend(plugin, "credentials", "1.22");
+            depend(plugin, "scm-api", "0.2");
+            plugins.add(plugin);
+        }
+        new TextFile(new File(j.jenkins.getRootDir(), "updates/stub.json"))
+                .write(updateCenter(plugins.toArray(new JSONObject[plugins.size()])).toString());
+    }
+
+    @After
+    public void reset() {
+        CloudBeesUpdateSite.COMPACT_DATA = false;
+    }
+
+    @Test
+    public void compactDataRetainsLessStringData() throws Exception {
+        long full = retainedStringBytes();
+        CloudBeesUpdateSite.COMPACT_DATA = true;
+        long compact = retainedStringBytes();
+        double saving = 1.0 - (double) compact / full;
+        LOGGER.log(Level.INFO,
+                "Strings retained by {0} plugins: {1} bytes full, {2} bytes compact ({3,number,percent} saved)",
+                new Object[]{PLUGINS, full, compact, saving});
+        // the versions, labels and dependencies shared are about 37% of the string data of these entries
+        assertTrue("saved " + saving, saving > 0.3);
+    }
+
+    @Test
+    public void compactDataIsEquivalent() {
+        UpdateSite.Data full = new CloudBeesUpdateSite("stub", "http://example.com/").getData();
+        CloudBeesUpdateSite.COMPACT_DATA = true;
+        UpdateSite.Data compact = new CloudBeesUpdateSite("stub", "http://example.com/").getData();
+        assertEquals(full.plugins.keySet(), compact.plugins.keySet());
+        for (Map.Entry<String, UpdateSite.Plugin> entry : full.plugins.entrySet()) {
+            UpdateSite.Plugin expected = entry.getValue();
+            UpdateSite.Plugin actual = compact.plugins.get(entry.getKey());
+            assertEquals(expected.name, actual.name);
+            assertEquals(expected.version, actual.version);
+            assertEquals(expected.url, actual.url);
+            assertEquals(expected.requiredCore, actual.requiredCore);
+            assertEquals(expected.dependencies, actual.dependencies);
+        }
+    }
+
+    /**
+     * Returns the estimated size of the distinct strings referenced by the fields of every {@link UpdateSite.Plugin},
+     * assuming a 64-bit JVM with compressed references.
+     */
+    private static long retainedStringBytes() throws IllegalAccessException {
+        UpdateSite.Data data = new CloudBeesUpdateSite("stub", "http://example.com/").getData();
+        Map<String, Boolean> strings = new IdentityHashMap<String, Boolean>();
+        for (UpdateSite.Plugin plugin : data.plugins.values()) {
+            for (Class<?> c = plugin.getClass(); c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        collect(field.get(plugin), strings);
+                    }
+                }
+            }
+        }
+        long bytes = 0;
+        for (String string : strings.keySet()) {
+            // String header and fields, then the char[] header and contents, each padded to 8 bytes
+            bytes += 24 + ((16 + 2L * string.length() + 7) / 8) * 8;
+        }
+        return bytes;
+    }
+
+    private static void collect(Object value, Map<String, Boolean> strings) {
+        if (value instanceof String) {
+            strings.put((String) value, true);
+        } else if (value instanceof Object[]) {
+            for (Object element : (Object[]) value) {
+                collect(element, strings);
+            }
+        } else if (value instanceof Collection) {
+            for (Object element : (Collection<?>) value) {
+                collect(element, strings);
+            }
+        } else if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                collect(entry.getKey(), strings);
+                collect(entry.getValue(), strings);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.plugins.enterpriseplugins;
+
+import hudson.util.FormValidation;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CloudBeesUpdateSiteTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private StubUpdateCenter server;
+
+    private byte[] metadata;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new StubUpdateCenter();
+        metadata = StubUpdateCenter.updateCenter(
+                StubUpdateCenter.plugin("stub-plugin", "1.0", server.getUrl("/stub-plugin.hpi"))
+        ).toString().getBytes("UTF-8");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+        CloudBeesUpdateSite.DISABLE_COMPRESSED_METADATA = false;
+    }
+
+    @Test
+    public void preCompressedSibling() throws Exception {
+        server.serveCompressed("/update-center.json.gz", metadata);
+        server.serve("/update-center.json", metadata);
+        CloudBeesUpdateSite site = update();
+        assertNotNull(site.getPlugin("stub-plugin"));
+        assertEquals(1, server.getHits("/update-center.json.gz"));
+        assertEquals(0, server.getHits("/update-center.json"));
+    }
+
+    @Test
+    public void contentEncoding() throws Exception {
+        server.serveEncoded("/update-center.json", metadata);
+        CloudBeesUpdateSite site = update();
+        assertNotNull(site.getPlugin("stub-plugin"));
+        assertEquals(1, server.getGzipped("/update-center.json"));
+    }
+
+    @Test
+    public void plainJsonFallback() throws Exception {
+        server.serve("/update-center.json", ("updateCenter.post(\n" + new String(metadata, "UTF-8") + "\n);")
+                .getBytes("UTF-8"));
+        CloudBeesUpdateSite site = update();
+        assertNotNull(site.getPlugin("stub-plugin"));
+        assertEquals(1, server.getHits("/update-center.json.gz"));
+        assertEquals(0, server.getGzipped("/update-center.json"));
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        CloudBeesUpdateSite.DISABLE_COMPRESSED_METADATA = true;
+        server.serveCompressed("/update-center.json.gz", metadata);
+        server.serve("/update-center.json", metadata);
+        CloudBeesUpdateSite site = update();
+        assertNotNull(site.getPlugin("stub-plugin"));
+        assertEquals(0, server.getHits("/update-center.json.gz"));
+    }
+
+    @Test
+    public void unsignedCompressedMetadataIsRejected() throws Exception {
+        server.serveCompressed("/update-center.json.gz", metadata);
+        assertRejected();
+    }
+
+    @Test
+    public void tamperedCompressedMetadataIsRejected() throws Exception {
+        JSONObject o = JSONObject.fromObject(new String(metadata, "UTF-8"));
+        JSONObject signature = new JSONObject();
+        JSONArray certificates = new JSONArray();
+        certificates.add(rootCertificate());
+        signature.put("certificates", certificates);
+        signature.put("correct_digest", "AAAAAAAAAAAAAAAAAAAAAAAAAAA=");
+        signature.put("correct_signature", "AAAAAAAAAAAAAAAAAAAAAAAAAAA=");
+        o.put("signature", signature);
+        server.serveCompressed("/update-center.json.gz", o.toString().getBytes("UTF-8"));
+        assertRejected();
+    }
+
+    /**
+     * Updates with the signature check on and asserts that the compressed metadata was rejected and not stored.
+     */
+    private void assertRejected() throws Exception {
+        CloudBeesUpdateSite site = new CloudBeesUpdateSite("stub", server.getUrl("/update-center.json"));
+        FormValidation result = site.updateDirectly(true).get();
+        assertEquals(result.toString(), FormValidation.Kind.ERROR, result.kind);
+        assertEquals(1, server.getHits("/update-center.json.gz"));
+        assertEquals(0, server.getHits("/update-center.json"));
+        assertFalse(new File(j.jenkins.getRootDir(), "updates/stub.json").exists());
+        assertNull(site.getPlugin("stub-plugin"));
+    }
+
+    /**
+     * Returns the base64 encoded certificate that the CloudBees update site trusts.
+     */
+    private static String rootCertificate() throws Exception {
+        InputStream stream = CloudBeesUpdateSite.class.getResourceAsStream("/cloudbees-root-cacert.pem");
+        try {
+            StringBuilder base64 = new StringBuilder();
+            for (Object line : IOUtils.readLines(stream, "US-ASCII")) {
+                if (!line.toString().startsWith("-----")) {
+                    base64.append(line.toString().trim());
+                }
+            }
+            return base64.toString();
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    private CloudBeesUpdateSite update() throws Exception {
+        CloudBeesUpdateSite site = new CloudBeesUpdateSite("stub", server.getUrl("/update-center.json"));
+        FormValidation result = site.updateDirectly(false).get();
+        assertEquals(result.toString(), FormValidation.Kind.OK, result.kind);
+        assertTrue(site.getDataTimestamp() > -1);
+        assertFalse(site.isDue());
+        return site;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.plugins.enterpriseplugins;
+
+import hudson.model.UpdateSite;
+import hudson.util.TextFile;
+import hudson.util.VersionNumber;
+import net.sf.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.localizer.Localizable;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static com.cloudbees.jenkins.plugins.enterpriseplugins.StubUpdateCenter.depend;
+import static com.cloudbees.jenkins.plugins.enterpriseplugins.StubUpdateCenter.plugin;
+import static com.cloudbees.jenkins.plugins.enterpriseplugins.StubUpdateCenter.updateCenter;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CompatibilityIndexTest {
+
+    private static final VersionNumber CORE = new VersionNumber("1.609.1");
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private UpdateSite site;
+
+    private UpdateSite otherSite;
+
+    private CompatibilityIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        JSONObject newCore = plugin("new-core", "1.0", "http://example.com/new-core.hpi");
+        newCore.put("requiredCore", "99.0");
+        JSONObject data = updateCenter(
+                plugin("plain", "1.0", "http://example.com/plain.hpi"),
+                plugin("shared", "1.5", "http://example.com/shared.hpi"),
+                newCore,
+                depend(plugin("needs-missing", "1.0", "http://example.com/needs-missing.hpi"), "missing", "1.0"),
+                depend(plugin("needs-newer", "1.0", "http://example.com/needs-newer.hpi"), "shared", "2.0"),
+                depend(plugin("needs-new-core", "1.0", "http://example.com/needs-new-core.hpi"), "new-core", "1.0"),
+                depend(plugin("needs-shared", "1.0", "http://example.com/needs-shared.hpi"), "shared", "1.0"),
+                depend(plugin("needs-elsewhere", "1.0", "http://example.com/needs-elsewhere.hpi"), "elsewhere", "1.0")
+        );
+        new TextFile(new File(j.jenkins.getRootDir(), "updates/stub.json")).write(data.toString());
+        site = new UpdateSite("stub", "http://example.com/update-center.json");
+        index = new CompatibilityIndex(site, CORE);
+        JSONObject other = updateCenter(
+                plugin("elsewhere", "1.0", "http://example.org/elsewhere.hpi"),
+                plugin("shared", "2.0", "http://example.org/shared.hpi")
+        );
+        new TextFile(new File(j.jenkins.getRootDir(), "updates/other.json")).write(other.toString());
+        otherSite = new UpdateSite("other", "http://example.org/update-center.json");
+    }
+
+    @Test
+    public void dependencyFromAnotherSite() {
+        assertReason(Messages._CompatibilityIndex_missingDependency("needs-elsewhere", "1.0", "elsewhere", "1.0"),
+                index.check(site.getPlugin("needs-elsewhere"), null));
+        CompatibilityIndex both = new CompatibilityIndex(Arrays.asList(site, otherSite), CORE);
+        assertNull(both.check(site.getPlugin("needs-elsewhere"), null));
+    }
+
+    @Test
+    public void dependencyFromTheFirstSiteOfferingIt() {
+        // core deploys shared 1.5 from the first site, however new the release on the second one
+        assertReason(Messages._CompatibilityIndex_missingDependency("needs-newer", "1.0", "shared", "2.0"),
+                new CompatibilityIndex(Arrays.asList(site, otherSite), CORE)
+                        .check(site.getPlugin("needs-newer"), null));
+        assertNull(new CompatibilityIndex(Arrays.asList(otherSite, site), CORE)
+                .check(site.getPlugin("needs-newer"), null));
+    }
+
+    @Test
+    public void compatible() {
+        assertNull(index.check(site.getPlugin("plain"), new VersionNumber("1.0")));
+        assertNull(index.check(site.getPlugin("needs-shared"), null));
+    }
+
+    @Test
+    public void olderThanRequired() {
+        assertReason(Messages._CompatibilityIndex_olderThanRequired("plain", "1.0", new VersionNumber("2.0")),
+                index.check(site.getPlugin("plain"), new VersionNumber("2.0")));
+    }
+
+    @Test
+    public void requiresNewerCore() {
+        assertReason(Messages._CompatibilityIndex_requiresNewerCore("new-core", "1.0", "99.0", CORE),
+                index.check(site.getPlugin("new-core"), null));
+    }
+
+    @Test
+    public void dependencyRequiresNewerCore() {
+        assertReason(Messages._CompatibilityIndex_requiresNewerCore("new-core", "1.0", "99.0", CORE),
+                index.check(site.getPlugin("needs-new-core"), null));
+    }
+
+    @Test
+    public void dependencyInstalledNeedsNothingFromSite() {
+        index.installed("new-core", new VersionNumber("1.0"));
+        assertNull(index.check(site.getPlugin("needs-new-core"), null));
+    }
+
+    @Test
+    public void missingDependency() {
+        assertReason(Messages._CompatibilityIndex_missingDependency("needs-missing", "1.0", "missing", "1.0"),
+                index.check(site.getPlugin("needs-missing"), null));
+    }
+
+    @Test
+    public void dependencyTooOldOnSite() {
+        assertReason(Messages._CompatibilityIndex_missingDependency("needs-newer", "1.0", "shared", "2.0"),
+                index.check(site.getPlugin("needs-newer"), null));
+    }
+
+    @Test
+    public void conflict() {
+        index.installed("dependant", new VersionNumber("1.0"));
+        index.requires("dependant", "shared", new VersionNumber("2.0"));
+        assertReason(Messages._CompatibilityIndex_conflict("shared", "1.5", "dependant", new VersionNumber("2.0")),
+                index.check(site.getPlugin("shared"), null));
+    }
+
+    @Test
+    public void transitiveConflict() {
+        index.installed("shared", new VersionNumber("0.9"));
+        index.installed("dependant", new VersionNumber("1.0"));
+        index.requires("dependant", "shared", new VersionNumber("2.0"));
+        assertReason(Messages._CompatibilityIndex_conflict("shared", "1.5", "dependant", new VersionNumber("2.0")),
+                index.check(site.getPlugin("needs-shared"), null));
+    }
+
+    private static void assertReason(Localizable expected, Localizable actual) {
+        assertEquals(expected.toString(), actual == null ? null : actual.toString());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.plugins.enterpriseplugins;
+
+import com.cloudbees.jenkins.plugins.enterpriseplugins.PluginImpl.Dependency;
+import com.cloudbees.jenkins.plugins.enterpriseplugins.PluginImpl.InstallMode;
+import hudson.util.VersionNumber;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InstallManifestTest {
+
+    private static final String VALID = "[MINIMAL]\na 1.0\n[OC]\na 1.0\n[FULL]\na 1.0\nb 2.0.1\n[END]\n";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void bundled() {
+        for (InstallMode installMode : InstallMode.values()) {
+            assertFalse(installMode.name(), InstallManifest.get().getDependencies(installMode).isEmpty());
+        }
+    }
+
+    @Test
+    public void duplicatesKeepFirstPositionAndHighestVersion() throws Exception {
+        InstallManifest manifest = InstallManifest.parse(new StringReader(
+                "[MINIMAL]\na 1.0\nb 2.0 optional\na 1.5\n[OC]\na 1.0\n[FULL]\na 1.0\n[END]\n"));
+        List<Dependency> minimal = manifest.getDependencies(InstallMode.MINIMAL);
+        assertEquals(2, minimal.size());
+        assertEquals("a", minimal.get(0).name);
+        assertEquals(new VersionNumber("1.5"), minimal.get(0).version);
+        assertTrue(minimal.get(1).optional);
+    }
+
+    @Test
+    public void missingSection() throws Exception {
+        assertRejected("[MINIMAL]\na 1.0\n[FULL]\na 1.0\n[END]\n", "OC");
+    }
+
+    @Test
+    public void emptySection() throws Exception {
+        assertRejected("[MINIMAL]\na 1.0\n[OC]\n[FULL]\na 1.0\n[END]\n", "OC");
+    }
+
+    @Test
+    public void truncatedAfterAnEntry() throws Exception {
+        assertRejected(VALID.substring(0, VALID.indexOf("[END]")), "[END]");
+    }
+
+    @Test
+    public void truncatedInAnEntry() throws Exception {
+        // the entry would otherwise be taken as a lower version
+        assertRejected(VALID.substring(0, VALID.indexOf("b 2.0.1") + "b 2.0".length()), "[END]");
+        // or as an entry without a version
+        assertRejected(VALID.substring(0, VALID.indexOf("b 2.0.1") + "b".length()), "line 7");
+    }
+
+    @Test
+    public void versionRequired() throws Exception {
+        assertRejected("[MINIMAL]\na 1.0\n[OC]\na 1.0\n[FULL]\na 1.0\nb\n[END]\n", "line 7");
+    }
+
+    @Test
+    public void contentAfterEnd() throws Exception {
+        assertRejected(VALID + "[FULL]\nc 1.0\n", "line 9");
+    }
+
+    @Test
+    public void refreshLoadsRemoteManifest() throws Exception {
+        refresh(VALID);
+        assertEquals("b", InstallManifest.get().getDependencies(InstallMode.FULL).get(1).name);
+    }
+
+    @Test
+    public void refreshKeepsLastGoodManifestWhenTruncated() throws Exception {
+        refresh(VALID);
+        InstallManifest good = InstallManifest.get();
+        refresh(VALID.substring(0, VALID.indexOf("b 2.0.1") + "b".length()));
+        assertSame(good, InstallManifest.get());
+    }
+
+    @Test
+    public void refreshKeepsLastGoodManifestWhenUnavailable() throws Exception {
+        refresh(VALID);
+        InstallManifest good = InstallManifest.get();
+        InstallManifest.MANIFEST_URL = new File(tmp.getRoot(), "missing.txt").toURI().toString();
+        InstallManifest.refresh().get();
+        assertSame(good, InstallManifest.get());
+    }
+
+    @Test
+    public void plainHttpIsRefused() throws Exception {
+        StubUpdateCenter server = new StubUpdateCenter();
+        try {
+            server.serve("/install-manifest.txt", VALID.getBytes("UTF-8"));
+            InstallManifest bundled = InstallManifest.get();
+            InstallManifest.MANIFEST_URL = server.getUrl("/install-manifest.txt");
+            InstallManifest.refresh().get();
+            assertSame(bundled, InstallManifest.get());
+            assertEquals(0, server.getHits("/install-manifest.txt"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @After
+    public void useBundledManifest() {
+        InstallManifest.MANIFEST_URL = null;
+        InstallManifest.current = null;
+    }
+
+    /**
+     * Serves a manifest from a {@code file} URL and waits for {@link InstallManifest#refresh()} to load it.
+     *
+     * @param manifest the manifest.
+     */
+    private void refresh(String manifest) throws Exception {
+        File file = tmp.newFile();
+        FileUtils.writeStringToFile(file, manifest, "UTF-8");
+        InstallManifest.MANIFEST_URL = file.toURI().toString();
+        InstallManifest.refresh().get();
+    }
+
+    private static void assertRejected(String manifest, String installMode) {
+        try {
+            InstallManifest.parse(new StringReader(manifest));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(installMode));
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.plugins.enterpriseplugins;
+
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.WebRequestSettings;
+import hudson.model.UpdateSite;
+import hudson.util.FormValidation;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.localizer.Localizable;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link Notice} with concurrent install, status and index requests while {@link PluginImpl} downloads
+ * plugins from a slow and occasionally failing update center.
+ */
+public class InstallerStressTest {
+
+    private static final Logger LOGGER = Logger.getLogger(InstallerStressTest.class.getName());
+
+    /**
+     * How long the update center takes to serve each plugin archive.
+     */
+    private static final long DOWNLOAD_LATENCY = 2000;
+
+    /**
+     * The number of concurrent clients.
+     */
+    private static final int CLIENTS = 8;
+
+    /**
+     * The number of install, status and index request rounds each client makes.
+     */
+    private static final int ROUNDS = 25;
+
+    /**
+     * The fewest requests per second the clients must get through together while downloads are running.
+     */
+    private static final double MIN_THROUGHPUT = CLIENTS;
+
+    /**
+     * The largest share of the time that any request may spend waiting for the installation queue.
+     */
+    private static final double MAX_BLOCKED_SHARE = 0.05;
+
+    /**
+     * {@link PluginImpl} remembers what it deployed for the life of the JVM, so every test offers versions of its own.
+     */
+    private static final AtomicInteger generation = new AtomicInteger();
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private StubUpdateCenter server;
+
+    private String suffix;
+
+    private String updateCenterUrl;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new StubUpdateCenter();
+        suffix = "." + generation.incrementAndGet();
+        updateCenterUrl = PluginImpl.updateCenterUrl;
+        PluginImpl.updateCenterUrl = server.getUrl("/update-center.json");
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        awaitInstalled();
+        server.stop();
+        PluginImpl.updateCenterUrl = updateCenterUrl;
+    }
+
+    @Test
+    public void concurrentRequests() throws Exception {
+        List<PluginImpl.Dependency> expected = offer(PluginImpl.InstallMode.OC);
+        String first = path(expected.get(0));
+        server.failFirst(first, 1);
+        warmUp();
+
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        ContentionSampler contention = new ContentionSampler(pendingPluginInstallsMonitor());
+        contention.start();
+        long start = System.nanoTime();
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < CLIENTS; i++) {
+                final PluginImpl.InstallMode installMode =
+                        i % 2 == 0 ? PluginImpl.InstallMode.OC : PluginImpl.InstallMode.MINIMAL;
+                results.add(clients.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        JenkinsRule.WebClient wc = j.createWebClient();
+                        wc.setJavaScriptEnabled(false);
+                        for (int round = 0; round < ROUNDS; round++) {
+                            long t = System.nanoTime();
+                            install(wc, installMode);
+                            latencies.add(System.nanoTime() - t);
+                            t = System.nanoTime();
+                            wc.goTo("install-cloudbees-enterprise-plugins/ajax");
+                            latencies.add(System.nanoTime() - t);
+                            t = System.nanoTime();
+                            wc.goTo("install-cloudbees-enterprise-plugins/");
+                            latencies.add(System.nanoTime() - t);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            clients.shutdownNow();
+            contention.finish();
+        }
+        long elapsed = System.nanoTime() - start;
+        awaitInstalled();
+
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        double throughput = sorted.size() * 1e9 / elapsed;
+        LOGGER.log(Level.INFO, "{0} requests in {1} ms ({2,number,#.#}/s), p50 {3} ms, p95 {4} ms, p99 {5} ms, "
+                + "max {6} ms, blocked on the installation queue in {7,number,percent} of {8} samples",
+                new Object[]{sorted.size(), TimeUnit.NANOSECONDS.toMillis(elapsed), throughput,
+                        percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99),
+                        percentile(sorted, 100), contention.getBlockedShare(), contention.getSamples()});
+        // requests must not queue up behind downloads
+        assertTrue("p95 " + percentile(sorted, 95) + " ms", percentile(sorted, 95) < DOWNLOAD_LATENCY);
+        assertTrue("throughput " + throughput + "/s", throughput >= MIN_THROUGHPUT);
+        assertTrue("sampled", contention.getSamples() > 0);
+        assertTrue("blocked on the installation queue in " + contention.getBlockedShare() + " of the samples",
+                contention.getBlockedShare() <= MAX_BLOCKED_SHARE);
+
+        assertEquals("retried after the failure", 2, server.getHits(first));
+        assertDeployedOnce(expected);
+    }
+
+    @Test
+    public void installRequestedWhileFinishing() throws Exception {
+        List<PluginImpl.Dependency> oc = offer(PluginImpl.InstallMode.OC);
+        JenkinsRule.WebClient wc = j.createWebClient();
+        wc.setJavaScriptEnabled(false);
+        install(wc, PluginImpl.InstallMode.MINIMAL);
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+        while (!PluginImpl.getPendingPluginInstalls().isEmpty()) {
+            assertTrue("timed out waiting for " + PluginImpl.getPendingPluginInstalls(),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+        // the queue is drained but the worker is winding down towards the restart, requests made now must be
+        // installed before the restart rather than stranded or interrupted by it
+        Thread.sleep(500);
+        assertTrue(PluginImpl.isInstalling());
+        install(wc, PluginImpl.InstallMode.OC);
+        awaitInstalled();
+        assertDeployedOnce(oc);
+    }
+
+    @Test
+    public void incompatiblePluginIsRejectedWithoutDownload() throws Exception {
+        List<PluginImpl.Dependency> minimal = offer(PluginImpl.InstallMode.MINIMAL, "cloudbees-license");
+        PluginImpl.Dependency incompatible = null;
+        List<PluginImpl.Dependency> compatible = new ArrayList<PluginImpl.Dependency>();
+        for (PluginImpl.Dependency dependency : minimal) {
+            if (dependency.name.equals("cloudbees-license")) {
+                incompatible = dependency;
+            } else {
+                compatible.add(dependency);
+            }
+        }
+        JenkinsRule.WebClient wc = j.createWebClient();
+        wc.setJavaScriptEnabled(false);
+        install(wc, PluginImpl.InstallMode.MINIMAL);
+        awaitInstalled();
+        // longer than the installer waits between attempts
+        Thread.sleep(TimeUnit.SECONDS.toMillis(6));
+
+        assertEquals(0, server.getHits(path(incompatible)));
+        List<Localizable> rejected = PluginImpl.getRejectedPluginInstalls();
+        assertEquals(rejected.toString(), 1, rejected.size());
+        assertTrue(rejected.get(0).toString(), rejected.get(0).toString().contains("cloudbees-license"));
+        assertDeployedOnce(compatible);
+    }
+
+    @Test
+    public void rollbackRestoresEveryRunSinceStartup() throws Exception {
+        List<PluginImpl.Dependency> oc = offer(PluginImpl.InstallMode.OC);
+        File rootDir = j.jenkins.getPluginManager().rootDir;
+        byte[] previous = StubUpdateCenter.fakePlugin("async-http-client", "0.1");
+        FileUtils.writeByteArrayToFile(new File(rootDir, "async-http-client.jpi"), previous);
+        JenkinsRule.WebClient wc = j.createWebClient();
+        wc.setJavaScriptEnabled(false);
+        // two installer threads, one per request
+        install(wc, PluginImpl.InstallMode.MINIMAL);
+        awaitInstalled();
+        install(wc, PluginImpl.InstallMode.OC);
+        awaitInstalled();
+        assertDeployedOnce(oc);
+
+        FormValidation result = PluginImpl.rollbackPluginInstalls();
+        assertEquals(result.toString(), FormValidation.Kind.OK, result.kind);
+        assertArrayEquals(previous, FileUtils.readFileToByteArray(new File(rootDir, "async-http-client.jpi")));
+        for (PluginImpl.Dependency dependency : oc) {
+            if (!dependency.name.equals("async-http-client")) {
+                assertFalse(dependency.name, new File(rootDir, dependency.name + ".jpi").exists());
+            }
+        }
+        assertFalse(PluginImpl.isRollbackAvailable());
+
+        // what was rolled back must be deployed again rather than taken as already deployed
+        install(wc, PluginImpl.InstallMode.MINIMAL);
+        awaitInstalled();
+        for (PluginImpl.Dependency dependency : mandatory(PluginImpl.InstallMode.MINIMAL)) {
+            assertEquals(dependency.name, 2, server.getServed(path(dependency)));
+            assertTrue(dependency.name, new File(rootDir, dependency.name + ".jpi").isFile());
+        }
+    }
+
+    /**
+     * Publishes update center metadata offering the plugins of an install mode and serves their archives.
+     *
+     * @param installMode  the install mode.
+     * @param incompatible the plugins to offer only in versions that need a newer Jenkins.
+     * @return the plugins that will be installed or rejected.
+     */
+    private List<PluginImpl.Dependency> offer(PluginImpl.InstallMode installMode, String... incompatible)
+            throws Exception {
+        List<JSONObject> plugins = new ArrayList<JSONObject>();
+        for (PluginImpl.Dependency dependency : installMode.getDependencies()) {
+            String version = dependency.version + suffix;
+            JSONObject plugin = StubUpdateCenter.plugin(dependency.name, version, server.getUrl(path(dependency)));
+            if (Arrays.asList(incompatible).contains(dependency.name)) {
+                plugin.put("requiredCore", "99.0");
+            }
+            plugins.add(plugin);
+            server.serve(path(dependency), StubUpdateCenter.fakePlugin(dependency.name, version));
+            server.setLatency(path(dependency), DOWNLOAD_LATENCY);
+        }
+        server.serveEncoded("/update-center.json",
+                StubUpdateCenter.updateCenter(plugins.toArray(new JSONObject[plugins.size()]))
+                        .toString().getBytes("UTF-8"));
+        UpdateSite site = new CloudBeesUpdateSite("jenkins-enterprise", PluginImpl.updateCenterUrl);
+        j.jenkins.getUpdateCenter().getSites().add(site);
+        FormValidation result = site.updateDirectly(false).get();
+        assertEquals(result.toString(), FormValidation.Kind.OK, result.kind);
+        return mandatory(installMode);
+    }
+
+    /**
+     * Loads the pages once so that compiling the views does not count towards the latencies.
+     */
+    private void warmUp() throws Exception {
+        JenkinsRule.WebClient wc = j.createWebClient();
+        wc.setJavaScriptEnabled(false);
+        wc.goTo("install-cloudbees-enterprise-plugins/");
+        wc.goTo("install-cloudbees-enterprise-plugins/ajax");
+    }
+
+    private void install(JenkinsRule.WebClient wc, PluginImpl.InstallMode installMode) throws Exception {
+        wc.getPage(new WebRequestSettings(
+                new URL(j.getURL(), "install-cloudbees-enterprise-plugins/install?installMode=" + installMode),
+                HttpMethod.POST));
+    }
+
+    private void awaitInstalled() throws Exception {
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(2);
+        while (PluginImpl.isInstalling()) {
+            assertTrue("timed out with " + PluginImpl.getPendingPluginInstalls() + " still queued",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+    }
+
+    private void assertDeployedOnce(List<PluginImpl.Dependency> dependencies) {
+        for (PluginImpl.Dependency dependency : dependencies) {
+            assertEquals(dependency.name, 1, server.getServed(path(dependency)));
+            assertTrue(dependency.name, new File(j.jenkins.getPluginManager().rootDir, dependency.name + ".jpi")
+                    .isFile());
+        }
+        assertTrue(PluginImpl.getPendingPluginInstalls().isEmpty());
+    }
+
+    private static List<PluginImpl.Dependency> mandatory(PluginImpl.InstallMode installMode) {
+        List<PluginImpl.Dependency> result = new ArrayList<PluginImpl.Dependency>();
+        for (PluginImpl.Dependency dependency : installMode.getDependencies()) {
+            if (!dependency.optional) {
+                result.add(dependency);
+            }
+        }
+        return result;
+    }
+
+    private static String path(PluginImpl.Dependency dependency) {
+        return "/download/" + dependency.name + ".hpi";
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        int i = Math.max(0, (int) Math.ceil(sorted.size() * percentile / 100.0) - 1);
+        return TimeUnit.NANOSECONDS.toMillis(sorted.get(i));
+    }
+
+    /**
+     * Returns the monitor guarding the installation queue.
+     */
+    private static Object pendingPluginInstallsMonitor() throws Exception {
+        Field field = PluginImpl.class.getDeclaredField("pendingPluginInstalls");
+        field.setAccessible(true);
+        return field.get(null);
+    }
+
+    /**
+     * Samples the threads every millisecond for any that are blocked entering a monitor.
+     */
+    private static class ContentionSampler extends Thread {
+
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        private final int monitor;
+
+        private volatile boolean finished;
+
+        private int samples;
+
+        private int blockedSamples;
+
+        private ContentionSampler(Object monitor) {
+            super("contention sampler");
+            setDaemon(true);
+            this.monitor = System.identityHashCode(monitor);
+        }
+
+        @Override
+        public void run() {
+            while (!finished) {
+                boolean blocked = false;
+                for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+                    if (info != null && info.getThreadState() == Thread.State.BLOCKED && info.getLockInfo() != null
+                            && info.getLockInfo().getIdentityHashCode() == monitor) {
+                        blocked = true;
+                        break;
+                    }
+                }
+                samples++;
+                if (blocked) {
+                    blockedSamples++;
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void finish() throws InterruptedException {
+            finished = true;
+            join();
+        }
+
+        int getSamples() {
+            return samples;
+        }
+
+        double getBlockedShare() {
+            return samples == 0 ? 0 : (double) blockedSamples / samples;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.plugins.enterpriseplugins;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PluginBackupsTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File pluginsDir;
+
+    private PluginBackups backups;
+
+    @Before
+    public void setUp() throws Exception {
+        pluginsDir = tmp.newFolder("plugins");
+        backups = new PluginBackups(tmp.newFolder("backups"), pluginsDir);
+        write("upgraded.jpi", "old");
+        write("other.jpi", "old");
+        PluginBackups.Generation generation = backups.begin();
+        generation.record("upgraded");
+        generation.record("other");
+        generation.record("added");
+        write("upgraded.jpi", "new");
+        write("other.jpi", "new");
+        write("added.jpi", "new");
+    }
+
+    @Test
+    public void rollback() throws Exception {
+        assertTrue(backups.isRollbackAvailable());
+        assertEquals(new HashSet<String>(Arrays.asList("upgraded", "other", "added")),
+                new HashSet<String>(backups.rollback()));
+        assertEquals("old", read("upgraded.jpi"));
+        assertEquals("old", read("other.jpi"));
+        assertFalse(new File(pluginsDir, "added.jpi").exists());
+        assertEquals(2, pluginsDir.list().length);
+        assertFalse(backups.isRollbackAvailable());
+    }
+
+    @Test
+    public void failedRollbackChangesNothing() throws Exception {
+        // a non-empty directory where the current archive is moved aside makes that rename fail
+        File blocker = new File(pluginsDir, "other.jpi.rollback");
+        assertTrue(blocker.mkdir());
+        FileUtils.touch(new File(blocker, "blocker"));
+        try {
+            backups.rollback();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("other"));
+            assertTrue(e.getMessage(), e.getMessage().contains("nothing was changed"));
+        }
+        assertEquals("new", read("upgraded.jpi"));
+        assertEquals("new", read("other.jpi"));
+        assertEquals("new", read("added.jpi"));
+        assertEquals(new HashSet<String>(Arrays.asList("upgraded.jpi", "other.jpi", "added.jpi", blocker.getName())),
+                new HashSet<String>(Arrays.asList(pluginsDir.list())));
+        assertTrue("can try again", backups.isRollbackAvailable());
+    }
+
+    private void write(String name, String content) throws IOException {
+        FileUtils.writeStringToFile(new File(pluginsDir, name), content);
+    }
+
+    private String read(String name) throws IOException {
+        return FileUtils.readFileToString(new File(pluginsDir, name));
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.jenkins.plugins.enterpriseplugins;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local static-file server standing in for an update center.
+ */
+class StubUpdateCenter {
+
+    /**
+     * The server.
+     */
+    private final HttpServer server;
+
+    /**
+     * The threads serving requests.
+     */
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * The content served for each path.
+     */
+    private final Map<String, Resource> resources = new ConcurrentHashMap<String, Resource>();
+
+    /**
+     * The number of requests received for each path.
+     */
+    private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * The number of responses sent with {@code Content-Encoding: gzip} for each path.
+     */
+    private final Map<String, AtomicInteger> gzipped = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * The number of {@code 200} responses sent for each path.
+     */
+    private final Map<String, AtomicInteger> served = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * The number of requests still to be failed for each path.
+     */
+    private final Map<String, AtomicInteger> failures = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * How long to wait before responding to requests for each path, in milliseconds.
+     */
+    private final Map<String, Long> latencies = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Starts a server on an ephemeral port.
+     *
+     * @throws IOException if the server could not be started.
+     */
+    StubUpdateCenter() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Stops the server.
+     */
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the URL of a path on this server.
+     *
+     * @param path the path.
+     * @return the URL.
+     */
+    String getUrl(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    /**
+     * Serves content as is.
+     *
+     * @param path    the path.
+     * @param content the content.
+     */
+    void serve(String path, byte[] content) {
+        resources.put(path, new Resource(content, false));
+    }
+
+    /**
+     * Serves content, gzip encoded when the client accepts it.
+     *
+     * @param path    the path.
+     * @param content the uncompressed content.
+     */
+    void serveEncoded(String path, byte[] content) {
+        resources.put(path, new Resource(content, true));
+    }
+
+    /**
+     * Serves the gzip compressed form of some content as a plain file, e.g. a {@code .json.gz}.
+     *
+     * @param path    the path.
+     * @param content the uncompressed content.
+     * @throws IOException if the content could not be compressed.
+     */
+    void serveCompressed(String path, byte[] content) throws IOException {
+        resources.put(path, new Resource(gzip(content), false));
+    }
+
+    /**
+     * Delays the responses for a path, e.g. to simulate a slow download.
+     *
+     * @param path   the path.
+     * @param millis how long to wait before responding, in milliseconds.
+     */
+    void setLatency(String path, long millis) {
+        latencies.put(path, millis);
+    }
+
+    /**
+     * Responds with {@code 500} to the next requests for a path.
+     *
+     * @param path  the path.
+     * @param count the number of requests to fail.
+     */
+    void failFirst(String path, int count) {
+        failures.put(path, new AtomicInteger(count));
+    }
+
+    /**
+     * Returns the number of requests received for a path.
+     *
+     * @param path the path.
+     * @return the number of requests received.
+     */
+    int getHits(String path) {
+        AtomicInteger count = hits.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Returns the number of responses sent with {@code Content-Encoding: gzip} for a path.
+     *
+     * @param path the path.
+     * @return the number of gzip encoded responses.
+     */
+    int getGzipped(String path) {
+        AtomicInteger count = gzipped.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Returns the number of {@code 200} responses sent for a path.
+     *
+     * @param path the path.
+     * @return the number of successful responses.
+     */
+    int getServed(String path) {
+        AtomicInteger count = served.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        increment(hits, path);
+        Long latency = latencies.get(path);
+        if (latency != null) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        AtomicInteger remaining = failures.get(path);
+        if (remaining != null && remaining.getAndDecrement() > 0) {
+            exchange.sendResponseHeaders(500, -1);
+            return;
+        }
+        Resource resource = resources.get(path);
+        if (resource == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        byte[] body = resource.content;
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (resource.encode && accept != null && accept.contains("gzip")) {
+            body = gzip(body);
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            increment(gzipped, path);
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+        increment(served, path);
+    }
+
+    private static void increment(Map<String, AtomicInteger> counts, String path) {
+        synchronized (counts) {
+            AtomicInteger count = counts.get(path);
+            if (count == null) {
+                count = new AtomicInteger();
+                counts.put(path, count);
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(content);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Builds a plugin archive that only has the manifest the plugin manager needs to load it.
+     *
+     * @param name    the plugin short name.
+     * @param version the plugin version.
+     * @return the archive.
+     * @throws IOException if the archive could not be built.
+     */
+    static byte[] fakePlugin(String name, String version) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("Short-Name", name);
+        attributes.putValue("Long-Name", name);
+        attributes.putValue("Plugin-Version", version);
+        attributes.putValue("Jenkins-Version", "1.400");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JarOutputStream out = new JarOutputStream(bytes, manifest);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Builds unsigned update center metadata.
+     *
+     * @param plugins the plugin entries, see {@link #plugin(String, String, String)}.
+     * @return the metadata.
+     */
+    static JSONObject updateCenter(JSONObject... plugins) {
+        JSONObject entries = new JSONObject();
+        for (JSONObject plugin : plugins) {
+            entries.put(plugin.getString("name"), plugin);
+        }
+        JSONObject o = new JSONObject();
+        o.put("updateCenterVersion", 1);
+        o.put("id", "stub");
+        o.put("plugins", entries);
+        return o;
+    }
+
+    /**
+     * Builds a plugin entry without dependencies.
+     *
+     * @param name    the plugin short name.
+     * @param version the plugin version.
+     * @param url     where the plugin can be downloaded from.
+     * @return the plugin entry.
+     */
+    static JSONObject plugin(String name, String version, String url) {
+        JSONObject o = new JSONObject();
+        o.put("name", name);
+        o.put("version", version);
+        o.put("url", url);
+        o.put("title", name);
+        o.put("wiki", "");
+        o.put("excerpt", "");
+        o.put("requiredCore", "1.400");
+        o.put("labels", new JSONArray());
+        o.put("dependencies", new JSONArray());
+        return o;
+    }
+
+    /**
+     * Adds a mandatory dependency to a plugin entry.
+     *
+     * @param plugin  the plugin entry.
+     * @param name    the dependency short name.
+     * @param version the dependency version.
+     * @return the plugin entry.
+     */
+    static JSONObject depend(JSONObject plugin, String name, String version) {
+        JSONObject dependency = new JSONObject();
+        dependency.put("name", name);
+        dependency.put("version", version);
+        dependency.put("optional", "false");
+        plugin.getJSONArray("dependencies").add(dependency);
+        return plugin;
+    }
+
+    /**
+     * Something to serve.
+     */
+    private static class Resource {
+        private final byte[] content;
+        private final boolean encode;
+
+        private Resource(byte[] content, boolean encode) {
+            this.content = content;
+            this.encode = encode;
+        }
+    }
+}